@@ -22,6 +22,7 @@ import static org.lealone.opscenter.service.ServiceConfig.instance;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
@@ -59,6 +60,12 @@ public class AdminService extends Service {
         json.put("allowOthers", Boolean.toString(instance.getAllowOthers()));
         json.put("ssl", String.valueOf(instance.getSSL()));
         json.put("sessions", new JsonArray(instance.getSessions()));
+        json.put("sessionRegistry", new JsonObject(instance.getSessionRegistryInfo()));
+        json.put("resultCache", ResultCache.instance.getInfo().getMap());
+        json.put("profiler", SamplingProfiler.instance.getInfoString());
+        json.put("slowQueryLog", SlowQueryLog.instance.getInfoString());
+        json.put("serviceThreads", ServiceExecutor.instance.getInfoString());
+        json.put("services", new JsonArray(ServiceExecutor.instance.getInfo()));
         return json.encode();
     }
 
@@ -108,6 +115,8 @@ public class AdminService extends Service {
                 tool = new ConvertTraceFile();
             } else if ("CreateCluster".equals(toolName)) {
                 tool = new CreateCluster();
+            } else if ("CsvImport".equals(toolName)) {
+                tool = new CsvImport();
             } else {
                 throw DbException.getInternalError(toolName);
             }
@@ -122,6 +131,9 @@ public class AdminService extends Service {
                 json.put("toolResult", result);
             } catch (Exception e) {
                 json.put("toolResult", getStackTrace(0, e, true));
+            } finally {
+                // the tools write to databases given by their arguments
+                ResultCache.instance.clear();
             }
         } catch (Exception e) {
             instance.traceError(e);
@@ -130,10 +142,12 @@ public class AdminService extends Service {
     }
 
     public String startTranslate() {
-        Map<?, ?> p = Map.class.cast(session.map.get("text"));
+        // the translation thread changes the texts, so the session gets its
+        // own copy instead of the shared one
         @SuppressWarnings("unchecked")
-        Map<Object, Object> p2 = (Map<Object, Object>) p;
-        String file = instance.startTranslate(p2);
+        Map<Object, Object> p = new HashMap<>(Map.class.cast(session.map.get("text")));
+        session.put("text", p);
+        String file = instance.startTranslate(p);
         session.put("translationFile", file);
         JsonObject json = new JsonObject();
         json.put("translationFile", file);
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Statement;
+import java.util.concurrent.Future;
+
+import org.h2.message.DbException;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A query that is executed by the query worker pool. The queries of a session
+ * use its connection, so they are executed one at a time, see
+ * ServiceSession.submitAsyncQuery.
+ */
+class AsyncQuery implements Runnable {
+
+    static final String QUEUED = "queued";
+    static final String RUNNING = "running";
+    static final String DONE = "done";
+    static final String CANCELED = "canceled";
+
+    final int id;
+    final String sql;
+    private final ServiceSession session;
+    private final long submitTime;
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile String state = QUEUED;
+    private volatile String result;
+
+    /**
+     * The file the result was written to, to free memory, or null.
+     */
+    private volatile Path spillFile;
+
+    /**
+     * The number of rows read so far, only written by the worker thread.
+     */
+    volatile long rowsFetched;
+
+    /**
+     * The statement that is currently executed.
+     */
+    volatile Statement statement;
+
+    volatile Future<?> future;
+
+    AsyncQuery(int id, ServiceSession session, String sql) {
+        this.id = id;
+        this.session = session;
+        this.sql = sql;
+        this.submitTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+        boolean canceled;
+        synchronized (this) {
+            canceled = state != QUEUED;
+            if (!canceled) {
+                state = RUNNING;
+                startTime = System.currentTimeMillis();
+            }
+        }
+        if (canceled) {
+            // canceled after the worker took it
+            session.asyncQueryFinished(this);
+            return;
+        }
+        QueryService service = new QueryService();
+        service.session = session;
+        service.asyncQuery = this;
+        String r;
+        try {
+            r = service.execute(sql);
+        } catch (Throwable e) {
+            r = service.getStackTrace(0, e, session.isH2());
+        }
+        synchronized (this) {
+            result = r;
+            statement = null;
+            endTime = System.currentTimeMillis();
+            if (state == RUNNING) {
+                state = DONE;
+            }
+        }
+        session.asyncQueryFinished(this);
+    }
+
+    /**
+     * Cancel the query if it is not finished yet.
+     *
+     * @return true if the query was canceled
+     */
+    boolean cancel() {
+        boolean removed;
+        synchronized (this) {
+            if (state != QUEUED) {
+                return cancelRunning();
+            }
+            state = CANCELED;
+            endTime = System.currentTimeMillis();
+            Future<?> f = future;
+            removed = f != null && f.cancel(false);
+        }
+        if (removed) {
+            // it will not run, so the next query of the session may start
+            session.asyncQueryFinished(this);
+        }
+        return true;
+    }
+
+    private synchronized boolean cancelRunning() {
+        if (state == RUNNING) {
+            state = CANCELED;
+            Statement stat = statement;
+            if (stat != null) {
+                try {
+                    stat.cancel();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    boolean isCanceled() {
+        return state == CANCELED;
+    }
+
+    boolean isFinished() {
+        return endTime != 0;
+    }
+
+    /**
+     * Estimate the memory of the result.
+     *
+     * @return the size in bytes
+     */
+    long getResultMemory() {
+        return SessionMemory.sizeOf(result);
+    }
+
+    /**
+     * Write the result of a finished query to a temporary file, so that it
+     * does not use memory until it is read.
+     *
+     * @return true if the result was written
+     */
+    synchronized boolean spill() {
+        if (result == null || endTime == 0) {
+            return false;
+        }
+        try {
+            Path file = Files.createTempFile("opscenter-result-", ".tmp");
+            Files.write(file, result.getBytes(StandardCharsets.UTF_8));
+            spillFile = file;
+            result = null;
+            return true;
+        } catch (IOException e) {
+            DbException.traceThrowable(e);
+            return false;
+        }
+    }
+
+    private String getResult() {
+        String r = result;
+        Path file = spillFile;
+        if (r == null && file != null) {
+            try {
+                r = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                DbException.traceThrowable(e);
+                r = "The result could not be read: " + e.getMessage();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Delete the temporary file of the result, if there is one.
+     */
+    void deleteSpillFile() {
+        Path file = spillFile;
+        if (file != null) {
+            spillFile = null;
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    JsonObject getStatus() {
+        JsonObject json = new JsonObject();
+        json.put("queryId", id);
+        json.put("state", state);
+        json.put("rowsFetched", rowsFetched);
+        long now = endTime != 0 ? endTime : System.currentTimeMillis();
+        json.put("queuedTime", (startTime != 0 ? startTime : now) - submitTime);
+        json.put("elapsedTime", startTime != 0 ? now - startTime : 0);
+        String r = getResult();
+        if (r != null) {
+            if (r.startsWith("{")) {
+                json.put("result", new JsonObject(r));
+            } else {
+                json.put("result", r);
+            }
+        }
+        return json;
+    }
+}
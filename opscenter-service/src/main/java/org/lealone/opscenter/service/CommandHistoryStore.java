@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.h2.message.DbException;
+
+/**
+ * The saved command history. New commands are appended to a journal file, one
+ * command per line, by a background thread, so that executing a statement
+ * does not write to the disk. The waiting commands are also written when the
+ * server stops. When the journal has grown to a multiple of the
+ * history size, it is compacted: the current history is written to a new file
+ * that replaces the journal.
+ * <p>
+ * In memory, the history is a linked hash set, so that adding a command that
+ * is already in the history only moves it to the end.
+ */
+class CommandHistoryStore implements Runnable {
+
+    /**
+     * The maximum number of commands.
+     */
+    static final int MAX_HISTORY = 1000;
+
+    /**
+     * The maximum number of commands waiting to be written.
+     */
+    private static final int QUEUE_SIZE = 10_000;
+
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final Path file;
+    private final LinkedHashSet<String> history = new LinkedHashSet<>();
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * The number of lines of the journal file.
+     */
+    private int journalLines;
+    private volatile Thread thread;
+
+    /**
+     * Create a store and read the journal.
+     *
+     * @param dir the directory of the journal, or null to keep the history in
+     *            memory only
+     */
+    CommandHistoryStore(String dir) {
+        file = dir == null ? null : Paths.get(dir, ".lealone.opscenter.history");
+        if (file != null && Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                for (String line; (line = reader.readLine()) != null;) {
+                    journalLines++;
+                    if (!line.isEmpty()) {
+                        add(history, unescape(line));
+                    }
+                }
+            } catch (IOException e) {
+                DbException.traceThrowable(e);
+            }
+        }
+        if (file != null) {
+            // the commands of the last flush interval
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "OpsCenterCommandHistoryShutdown"));
+        }
+    }
+
+    /**
+     * Whether the journal file exists.
+     *
+     * @return true if it exists
+     */
+    boolean exists() {
+        return file != null && Files.exists(file);
+    }
+
+    /**
+     * Add a command to a history, or move it to the end if it is there
+     * already, and remove the oldest command if the history is full.
+     *
+     * @param history the history
+     * @param sql the command
+     */
+    static void add(LinkedHashSet<String> history, String sql) {
+        history.remove(sql);
+        history.add(sql);
+        if (history.size() > MAX_HISTORY) {
+            Iterator<String> it = history.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Save a command. The command is written in the background.
+     *
+     * @param sql the command
+     */
+    void append(String sql) {
+        if (queued.incrementAndGet() > QUEUE_SIZE) {
+            // the disk is slower than the statements, the history is not
+            // important enough to wait for it
+            queued.decrementAndGet();
+            return;
+        }
+        queue.offer(sql);
+        if (thread == null) {
+            start();
+        }
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            Thread t = new Thread(this, "OpsCenterCommandHistory");
+            t.setDaemon(true);
+            t.start();
+            thread = t;
+        }
+    }
+
+    /**
+     * Get the saved commands, the oldest first.
+     *
+     * @return the commands
+     */
+    synchronized ArrayList<String> getList() {
+        LinkedHashSet<String> h = new LinkedHashSet<>(history);
+        // and the commands that were not written yet
+        for (String sql : queue) {
+            add(h, sql);
+        }
+        return new ArrayList<>(h);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            LockSupport.parkNanos(FLUSH_INTERVAL);
+            flush();
+        }
+    }
+
+    /**
+     * Write the waiting commands to the journal, and compact the journal if it
+     * is too large.
+     */
+    synchronized void flush() {
+        ArrayList<String> list = new ArrayList<>();
+        for (String sql; (sql = queue.poll()) != null;) {
+            queued.decrementAndGet();
+            add(history, sql);
+            list.add(sql);
+        }
+        if (list.isEmpty() || file == null) {
+            return;
+        }
+        try {
+            if (journalLines + list.size() > 2 * MAX_HISTORY) {
+                compact();
+            } else {
+                try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (String sql : list) {
+                        writer.write(escape(sql));
+                        writer.newLine();
+                    }
+                }
+                journalLines += list.size();
+            }
+        } catch (IOException e) {
+            DbException.traceThrowable(e);
+        }
+    }
+
+    /**
+     * Replace the journal with the current history. The new file is written
+     * first and then renamed, so that the history is not lost if writing
+     * fails.
+     */
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".temp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (String sql : history) {
+                writer.write(escape(sql));
+                writer.newLine();
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        journalLines = history.size();
+    }
+
+    private static String escape(String sql) {
+        return sql.replace("\\", "\\\\").replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    private static String unescape(String line) {
+        StringBuilder buff = new StringBuilder(line.length());
+        for (int i = 0, length = line.length(); i < length; i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < length) {
+                c = line.charAt(++i);
+                c = c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+            }
+            buff.append(c);
+        }
+        return buff.toString();
+    }
+}
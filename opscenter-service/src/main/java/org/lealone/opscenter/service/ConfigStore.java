@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.h2.message.DbException;
+import org.h2.util.Utils;
+
+/**
+ * Writes the server properties file in the background. The configuration in
+ * memory is authoritative; a change only marks it dirty, and the changes of a
+ * short period are written together. The file is written to a temporary file
+ * first, which is then renamed to the properties file, so that a crash while
+ * writing does not leave a truncated file behind.
+ */
+class ConfigStore {
+
+    /**
+     * The time in milliseconds the changes are collected before they are
+     * written.
+     */
+    private static final int FLUSH_DELAY = Utils.getProperty("lealone.opscenter.configFlushDelay", 500);
+
+    private final Path file;
+    private final Supplier<Properties> snapshot;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledThreadPoolExecutor writer;
+    private long writtenVersion;
+
+    /**
+     * Create a store.
+     *
+     * @param fileName the properties file, or null to keep the configuration
+     *            in memory only
+     * @param snapshot creates a copy of the current configuration
+     */
+    ConfigStore(String fileName, Supplier<Properties> snapshot) {
+        this.file = fileName == null ? null : Paths.get(fileName);
+        this.snapshot = snapshot;
+        writer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "OpsCenterConfigWriter");
+            t.setDaemon(true);
+            return t;
+        });
+        if (file != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "OpsCenterConfigWriterShutdown"));
+        }
+    }
+
+    /**
+     * Mark the configuration as changed. It is written after a short delay,
+     * together with the other changes of that time.
+     */
+    void markDirty() {
+        version.incrementAndGet();
+        if (file != null && scheduled.compareAndSet(false, true)) {
+            writer.schedule(() -> {
+                scheduled.set(false);
+                flush();
+            }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write the configuration if it was changed.
+     */
+    synchronized void flush() {
+        long v = version.get();
+        if (file == null || v == writtenVersion) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".temp");
+        try {
+            Properties prop = snapshot.get();
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                prop.store(out, "H2 Server Properties");
+                out.getFD().sync();
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            writtenVersion = v;
+        } catch (IOException e) {
+            DbException.traceThrowable(e);
+        }
+    }
+}
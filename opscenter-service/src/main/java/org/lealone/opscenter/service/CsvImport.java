@@ -0,0 +1,576 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.message.DbException;
+import org.h2.store.fs.FileUtils;
+import org.h2.util.JdbcUtils;
+import org.h2.util.StringUtils;
+import org.h2.util.Tool;
+
+/**
+ * Imports a CSV file into an existing table, using multiple threads.
+ * <p>
+ * The file is read by one thread and cut into chunks of complete records.
+ * Each worker thread parses its chunks, converts the values to the types of
+ * the table columns, and inserts them with JDBC batches on its own
+ * connection, committing periodically. Rows that can not be converted or
+ * inserted are rejected and reported, the other rows are imported.
+ */
+public class CsvImport extends Tool {
+
+    private static final int MAX_REPORTED_ERRORS = 20;
+
+    private String url;
+    private String user = "";
+    private String password = "";
+    private String fileName;
+    private String table;
+    private String charset = "UTF-8";
+    private char separator = ',';
+    private boolean header = true;
+    private int threads = 4;
+    private int batchSize = 1000;
+    private int commitSize = 10_000;
+
+    private String[] columnNames;
+    private int[] columnTypes;
+
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final ArrayList<String> errors = new ArrayList<>();
+    private volatile Throwable failure;
+
+    /**
+     * Options are case sensitive. Supported options are:
+     * <table>
+     * <tr><td>[-help] or [-?]</td>
+     * <td>Print the list of options</td></tr>
+     * <tr><td>[-url "&lt;url&gt;"]</td>
+     * <td>The database URL (jdbc:...)</td></tr>
+     * <tr><td>[-user &lt;user&gt;]</td>
+     * <td>The user name</td></tr>
+     * <tr><td>[-password &lt;pwd&gt;]</td>
+     * <td>The password</td></tr>
+     * <tr><td>[-file &lt;file&gt;]</td>
+     * <td>The CSV file name</td></tr>
+     * <tr><td>[-table &lt;table&gt;]</td>
+     * <td>The target table, optionally with the schema name</td></tr>
+     * <tr><td>[-charset &lt;charset&gt;]</td>
+     * <td>The file encoding (default: UTF-8)</td></tr>
+     * <tr><td>[-separator &lt;char&gt;]</td>
+     * <td>The field separator (default: ,)</td></tr>
+     * <tr><td>[-noHeader]</td>
+     * <td>The first line contains data, not column names</td></tr>
+     * <tr><td>[-threads &lt;n&gt;]</td>
+     * <td>The number of insert threads and connections (default: 4)</td></tr>
+     * <tr><td>[-batchSize &lt;n&gt;]</td>
+     * <td>The number of rows per JDBC batch (default: 1000)</td></tr>
+     * <tr><td>[-commitSize &lt;n&gt;]</td>
+     * <td>The number of rows per commit and thread (default: 10000)</td></tr>
+     * </table>
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String... args) throws SQLException {
+        new CsvImport().runTool(args);
+    }
+
+    @Override
+    public void runTool(String... args) throws SQLException {
+        for (int i = 0; args != null && i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-url")) {
+                url = args[++i];
+            } else if (arg.equals("-user")) {
+                user = args[++i];
+            } else if (arg.equals("-password")) {
+                password = args[++i];
+            } else if (arg.equals("-file")) {
+                fileName = args[++i];
+            } else if (arg.equals("-table")) {
+                table = args[++i];
+            } else if (arg.equals("-charset")) {
+                charset = args[++i];
+            } else if (arg.equals("-separator")) {
+                separator = args[++i].charAt(0);
+            } else if (arg.equals("-noHeader")) {
+                header = false;
+            } else if (arg.equals("-threads")) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("-batchSize")) {
+                batchSize = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("-commitSize")) {
+                commitSize = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (arg.equals("-help") || arg.equals("-?")) {
+                showUsage();
+                return;
+            } else {
+                showUsageAndThrowUnsupportedOption(arg);
+            }
+        }
+        if (url == null || fileName == null || table == null) {
+            showUsage();
+            throw new SQLException("URL, file or table not set");
+        }
+        try {
+            process();
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, fileName);
+        }
+    }
+
+    private void process() throws SQLException, IOException {
+        long time = System.nanoTime();
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(threads * 2);
+        ArrayList<Thread> workers = new ArrayList<>(threads);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(FileUtils.newInputStream(fileName), Charset.forName(charset)), 1 << 16)) {
+            String firstLine = header ? readRecord(reader) : null;
+            readColumns(firstLine);
+            String sql = getInsertSQL();
+            for (int i = 0; i < threads; i++) {
+                Connection conn = JdbcUtils.getConnection(null, url, user, password);
+                Thread t = new Thread(() -> runWorker(conn, sql, queue), "CsvImport-" + (i + 1));
+                t.setDaemon(true);
+                workers.add(t);
+                t.start();
+            }
+            long line = header ? 2 : 1;
+            Chunk chunk = new Chunk(line, batchSize);
+            String record;
+            while (failure == null && (record = readRecord(reader)) != null) {
+                chunk.records.add(record);
+                line += countLines(record) + 1;
+                if (chunk.records.size() >= batchSize) {
+                    queue.put(chunk);
+                    chunk = new Chunk(line, batchSize);
+                }
+            }
+            if (!chunk.records.isEmpty()) {
+                queue.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        } finally {
+            for (int i = 0; i < workers.size(); i++) {
+                try {
+                    queue.put(Chunk.END);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            for (Thread t : workers) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (failure != null) {
+            throw DbException.convert(failure);
+        }
+        time = (System.nanoTime() - time) / 1_000_000;
+        long rows = imported.get();
+        out.println(rows + " rows imported into " + table + " in " + time + " ms, "
+                + (time == 0 ? rows : rows * 1000 / time) + " rows/s, " + threads + " threads");
+        out.println(rejected.get() + " rows rejected");
+        for (String e : errors) {
+            out.println(e);
+        }
+        if (rejected.get() > errors.size()) {
+            out.println("...");
+        }
+    }
+
+    /**
+     * Read a record, which may span multiple lines if a quoted field contains
+     * line breaks.
+     */
+    private static String readRecord(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null || countQuotes(line) % 2 == 0) {
+            return line;
+        }
+        StringBuilder buff = new StringBuilder(line);
+        int quotes = countQuotes(line);
+        while (quotes % 2 != 0 && (line = reader.readLine()) != null) {
+            buff.append('\n').append(line);
+            quotes += countQuotes(line);
+        }
+        return buff.toString();
+    }
+
+    private static int countQuotes(String s) {
+        int count = 0;
+        for (int i = 0, length = s.length(); i < length; i++) {
+            if (s.charAt(i) == '"') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int countLines(String s) {
+        int count = 0;
+        for (int i = 0, length = s.length(); i < length; i++) {
+            if (s.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read the column names and types of the target table. If the file has a
+     * header, only the columns of the header are imported, in that order.
+     */
+    private void readColumns(String headerLine) throws SQLException {
+        String schema = null;
+        String tableName = table;
+        int idx = table.indexOf('.');
+        if (idx > 0) {
+            schema = table.substring(0, idx);
+            tableName = table.substring(idx + 1);
+        }
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<Integer> types = new ArrayList<>();
+        try (Connection conn = JdbcUtils.getConnection(null, url, user, password)) {
+            DatabaseMetaData meta = conn.getMetaData();
+            for (String t : new String[] { tableName, StringUtils.toUpperEnglish(tableName) }) {
+                try (ResultSet rs = meta.getColumns(null, schema == null ? null : StringUtils.toUpperEnglish(schema),
+                        t, null)) {
+                    while (rs.next()) {
+                        names.add(rs.getString("COLUMN_NAME"));
+                        types.add(rs.getInt("DATA_TYPE"));
+                    }
+                }
+                if (!names.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            throw new SQLException("Table not found: " + table);
+        }
+        if (headerLine == null) {
+            columnNames = names.toArray(new String[0]);
+            columnTypes = types.stream().mapToInt(Integer::intValue).toArray();
+            return;
+        }
+        ArrayList<String> fields = parseRecord(headerLine, separator);
+        columnNames = new String[fields.size()];
+        columnTypes = new int[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            String f = fields.get(i) == null ? "" : fields.get(i).trim();
+            int found = -1;
+            for (int j = 0; j < names.size(); j++) {
+                if (names.get(j).equalsIgnoreCase(f)) {
+                    found = j;
+                    break;
+                }
+            }
+            if (found < 0) {
+                throw new SQLException("Column not found in " + table + ": " + f);
+            }
+            columnNames[i] = names.get(found);
+            columnTypes[i] = types.get(found);
+        }
+    }
+
+    private String getInsertSQL() {
+        StringBuilder buff = new StringBuilder("INSERT INTO ").append(table).append('(');
+        for (int i = 0; i < columnNames.length; i++) {
+            if (i > 0) {
+                buff.append(", ");
+            }
+            buff.append(StringUtils.quoteIdentifier(columnNames[i]));
+        }
+        buff.append(") VALUES(");
+        for (int i = 0; i < columnNames.length; i++) {
+            buff.append(i > 0 ? ", ?" : "?");
+        }
+        return buff.append(')').toString();
+    }
+
+    private void runWorker(Connection conn, String sql, BlockingQueue<Chunk> queue) {
+        boolean ended = false;
+        try (PreparedStatement prep = conn.prepareStatement(sql)) {
+            conn.setAutoCommit(false);
+            ArrayList<Object[]> batch = new ArrayList<>(batchSize);
+            ArrayList<Long> batchLines = new ArrayList<>(batchSize);
+            int uncommitted = 0;
+            while (true) {
+                Chunk chunk = queue.take();
+                if (chunk == Chunk.END) {
+                    ended = true;
+                    break;
+                }
+                if (failure != null) {
+                    continue;
+                }
+                long line = chunk.firstLine;
+                for (String record : chunk.records) {
+                    long recordLine = line;
+                    line += countLines(record) + 1;
+                    if (record.isEmpty()) {
+                        continue;
+                    }
+                    Object[] row;
+                    try {
+                        row = convert(parseRecord(record, separator));
+                    } catch (Exception e) {
+                        reject(recordLine, e.getMessage());
+                        continue;
+                    }
+                    batch.add(row);
+                    batchLines.add(recordLine);
+                }
+                uncommitted += insert(conn, prep, batch, batchLines);
+                batch.clear();
+                batchLines.clear();
+                if (uncommitted >= commitSize) {
+                    conn.commit();
+                    uncommitted = 0;
+                }
+            }
+            conn.commit();
+        } catch (Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+            if (!ended) {
+                // the reader waits for space in the queue, and puts an end
+                // marker for each worker, so the chunks are taken until then
+                drain(queue);
+            }
+        } finally {
+            JdbcUtils.closeSilently(conn);
+        }
+    }
+
+    private static void drain(BlockingQueue<Chunk> queue) {
+        try {
+            while (queue.take() != Chunk.END) {
+                // skip
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Insert a batch. If the batch fails, it is rolled back and the rows are
+     * inserted one by one, so that only the bad rows are rejected.
+     *
+     * @return the number of inserted rows
+     */
+    private int insert(Connection conn, PreparedStatement prep, ArrayList<Object[]> batch,
+            ArrayList<Long> batchLines) throws SQLException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            for (Object[] row : batch) {
+                setParameters(prep, row);
+                prep.addBatch();
+            }
+            prep.executeBatch();
+            imported.addAndGet(batch.size());
+            return batch.size();
+        } catch (SQLException e) {
+            prep.clearBatch();
+            conn.rollback(savepoint);
+        }
+        int count = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                setParameters(prep, batch.get(i));
+                prep.executeUpdate();
+                count++;
+            } catch (SQLException e) {
+                reject(batchLines.get(i), e.getMessage());
+            }
+        }
+        imported.addAndGet(count);
+        return count;
+    }
+
+    private static void setParameters(PreparedStatement prep, Object[] row) throws SQLException {
+        for (int i = 0; i < row.length; i++) {
+            prep.setObject(i + 1, row[i]);
+        }
+    }
+
+    private void reject(long line, String message) {
+        rejected.incrementAndGet();
+        synchronized (errors) {
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add("line " + line + ": " + message);
+            }
+        }
+    }
+
+    /**
+     * Convert the fields of a record to the types of the columns.
+     */
+    private Object[] convert(ArrayList<String> fields) {
+        if (fields.size() != columnTypes.length) {
+            throw new IllegalArgumentException(
+                    "expected " + columnTypes.length + " fields, got " + fields.size());
+        }
+        Object[] row = new Object[fields.size()];
+        for (int i = 0; i < row.length; i++) {
+            String s = fields.get(i);
+            row[i] = s == null ? null : convert(s, columnTypes[i]);
+        }
+        return row;
+    }
+
+    private static Object convert(String s, int type) {
+        switch (type) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+            return Integer.parseInt(s.trim());
+        case Types.BIGINT:
+            return Long.parseLong(s.trim());
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            return new BigDecimal(s.trim());
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            return Double.parseDouble(s.trim());
+        case Types.BOOLEAN:
+        case Types.BIT: {
+            String b = StringUtils.toUpperEnglish(s.trim());
+            if (b.equals("TRUE") || b.equals("1")) {
+                return Boolean.TRUE;
+            } else if (b.equals("FALSE") || b.equals("0")) {
+                return Boolean.FALSE;
+            }
+            throw new IllegalArgumentException("not a boolean: " + s);
+        }
+        case Types.DATE:
+            return Date.valueOf(s.trim());
+        case Types.TIME:
+            return Time.valueOf(s.trim());
+        case Types.TIMESTAMP:
+            return Timestamp.valueOf(s.trim());
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+        case Types.BLOB:
+            return StringUtils.convertHexToBytes(s.trim());
+        default:
+            return s;
+        }
+    }
+
+    /**
+     * Parse a CSV record. Fields may be quoted with '"', a quote in a quoted
+     * field is written as two quotes. An empty unquoted field is NULL.
+     *
+     * @param record the record
+     * @param separator the field separator
+     * @return the fields
+     */
+    static ArrayList<String> parseRecord(String record, char separator) {
+        ArrayList<String> fields = new ArrayList<>();
+        StringBuilder buff = new StringBuilder();
+        int length = record.length();
+        int i = 0;
+        while (true) {
+            buff.setLength(0);
+            boolean quoted = false;
+            if (i < length && record.charAt(i) == '"') {
+                quoted = true;
+                i++;
+                while (i < length) {
+                    char c = record.charAt(i++);
+                    if (c == '"') {
+                        if (i < length && record.charAt(i) == '"') {
+                            buff.append('"');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        buff.append(c);
+                    }
+                }
+                while (i < length && record.charAt(i) != separator) {
+                    i++;
+                }
+            } else {
+                while (i < length && record.charAt(i) != separator) {
+                    buff.append(record.charAt(i++));
+                }
+                if (buff.length() > 0 && buff.charAt(buff.length() - 1) == '\r') {
+                    buff.setLength(buff.length() - 1);
+                }
+            }
+            fields.add(!quoted && buff.length() == 0 ? null : buff.toString());
+            if (i >= length) {
+                break;
+            }
+            // skip the separator
+            i++;
+        }
+        return fields;
+    }
+
+    /**
+     * A chunk of complete records, not parsed yet.
+     */
+    private static class Chunk {
+
+        static final Chunk END = new Chunk(0, 0);
+
+        final long firstLine;
+        final ArrayList<String> records;
+
+        Chunk(long firstLine, int capacity) {
+            this.firstLine = firstLine;
+            this.records = new ArrayList<>(capacity);
+        }
+    }
+}
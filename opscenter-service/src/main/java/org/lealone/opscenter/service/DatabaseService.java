@@ -5,6 +5,7 @@
  */
 package org.lealone.opscenter.service;
 
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -27,8 +28,20 @@ import io.vertx.core.json.JsonObject;
 public class DatabaseService extends Service {
 
     public String readAllDatabaseObjects(String jsessionid) {
-        session = ServiceConfig.instance.getSession(jsessionid);
+        DatabaseService service = new DatabaseService();
+        service.session = ServiceConfig.instance.getSession(jsessionid);
+        // the tree is built in the lists of the session
+        synchronized (service.session.nodeList) {
+            return service.readAllDatabaseObjects();
+        }
+    }
 
+    /**
+     * Lealone keeps one instance of a service and calls it from several
+     * threads at the same time, so the tree is built by an instance of its
+     * own.
+     */
+    private String readAllDatabaseObjects() {
         ServerSession serverSession = session.getServerSession();
         Database db = serverSession.getDatabase();
         try {
@@ -88,6 +101,38 @@ public class DatabaseService extends Service {
         return str;
     }
 
+    /**
+     * Read a page of the rows of a table, see TableBrowser.
+     *
+     * @param jsessionid the session id
+     * @param tableName the table name as in SQL
+     * @param orderBy the column to sort by, or empty for the primary key
+     * @param descending "true" to sort in descending order
+     * @param filters the filters by column name as json object, or empty
+     * @param after the position of the previous page, or empty for the first
+     *            page
+     * @param pageSize the number of rows, 0 for the default
+     * @return the page as json, or the error
+     */
+    public String browseTable(String jsessionid, String tableName, String orderBy, String descending,
+            String filters, String after, int pageSize) {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        JsonObject json;
+        try {
+            Connection conn = session.getConnection();
+            if (conn == null) {
+                throw new SQLException("Not connected");
+            }
+            TableBrowser browser = TableBrowser.open(conn, tableName);
+            json = browser.readPage(conn, session, orderBy, Boolean.parseBoolean(descending), filters, after,
+                    pageSize);
+        } catch (Exception e) {
+            json = new JsonObject();
+            json.put("error", formatAsError(e.getMessage()));
+        }
+        return json.encode();
+    }
+
     private int addTablesAndViews(Schema schema, boolean mainSchema, int treeIndex) throws SQLException {
         if (schema == null) {
             return treeIndex;
@@ -0,0 +1,523 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+import org.h2.value.DataType;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The rows of an @edit query, read one page at a time in primary key order.
+ * Only the primary keys of the current page are kept, no result set stays
+ * open between requests. Changes are written with UPDATE, INSERT and DELETE
+ * statements by primary key, and a changed row is read again by its key.
+ * <p>
+ * This is used if the query reads from one table with a primary key, and all
+ * primary key columns are part of the result.
+ */
+class EditWindow {
+
+    /**
+     * The number of rows of a page.
+     */
+    static final int PAGE_SIZE = Utils.getProperty("lealone.opscenter.editPageSize", 100);
+
+    /**
+     * The time after which an unused edit window or updatable result set is
+     * released, in milliseconds.
+     */
+    static final long IDLE_TIMEOUT = Utils.getProperty("lealone.opscenter.editIdleTimeout", 300) * 1000L;
+
+    static final int FIRST = 0, NEXT = 1, PREVIOUS = 2;
+
+    private final String sql;
+    private final String table;
+    private final int[] types;
+    private final boolean[] binary;
+
+    /**
+     * The quoted table column of each result column, or null if the result
+     * column is not a column of the table.
+     */
+    private final String[] tableColumns;
+
+    /**
+     * The result column index of each primary key column, starting with 0.
+     */
+    private final int[] keyColumns;
+
+    /**
+     * The quoted labels of the primary key columns in the result.
+     */
+    private final String[] keyLabels;
+
+    /**
+     * The primary keys of the rows of the current page. The key of a deleted
+     * row is null.
+     */
+    private final ArrayList<Object[]> keys = new ArrayList<>();
+    private int pageNumber;
+
+    private EditWindow(String sql, String table, int[] types, boolean[] binary, String[] tableColumns,
+            int[] keyColumns, String[] keyLabels) {
+        this.sql = sql;
+        this.table = table;
+        this.types = types;
+        this.binary = binary;
+        this.tableColumns = tableColumns;
+        this.keyColumns = keyColumns;
+        this.keyLabels = keyLabels;
+    }
+
+    /**
+     * Create an edit window for the query, if the query reads from one table
+     * with a primary key.
+     *
+     * @param conn the connection
+     * @param sql the query
+     * @return the edit window, or null if the query can not be edited by key
+     */
+    static EditWindow open(Connection conn, String sql) throws SQLException {
+        if (!ResultCache.isQuery(sql)) {
+            return null;
+        }
+        String schema = null, tableName = null;
+        int columns;
+        int[] types;
+        boolean[] binary;
+        String[] columnNames, labels;
+        try (Statement stat = conn.createStatement()) {
+            stat.setMaxRows(1);
+            try (ResultSet rs = stat.executeQuery(sql)) {
+                ResultSetMetaData meta = rs.getMetaData();
+                columns = meta.getColumnCount();
+                types = new int[columns];
+                binary = new boolean[columns];
+                columnNames = new String[columns];
+                labels = new String[columns];
+                HashSet<String> uniqueLabels = new HashSet<>();
+                for (int i = 0; i < columns; i++) {
+                    types[i] = meta.getColumnType(i + 1);
+                    binary[i] = DataType.isBinaryColumn(meta, i + 1);
+                    labels[i] = meta.getColumnLabel(i + 1);
+                    if (!uniqueLabels.add(labels[i])) {
+                        return null;
+                    }
+                    String t = meta.getTableName(i + 1);
+                    if (t == null || t.isEmpty()) {
+                        continue;
+                    }
+                    String s = meta.getSchemaName(i + 1);
+                    if (tableName == null) {
+                        tableName = t;
+                        schema = s;
+                    } else if (!tableName.equals(t) || s != null && !s.equals(schema)) {
+                        // a join
+                        return null;
+                    }
+                    columnNames[i] = meta.getColumnName(i + 1);
+                }
+            }
+        }
+        if (tableName == null) {
+            return null;
+        }
+        TreeMap<Integer, String> primaryKey = new TreeMap<>();
+        DatabaseMetaData dbMeta = conn.getMetaData();
+        try (ResultSet rs = dbMeta.getPrimaryKeys(null, schema, tableName)) {
+            while (rs.next()) {
+                primaryKey.put(rs.getInt("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+            }
+        }
+        if (primaryKey.isEmpty()) {
+            return null;
+        }
+        int[] keyColumns = new int[primaryKey.size()];
+        String[] keyLabels = new String[primaryKey.size()];
+        int k = 0;
+        for (String name : primaryKey.values()) {
+            int found = -1;
+            for (int i = 0; i < columns; i++) {
+                if (name.equals(columnNames[i])) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found < 0) {
+                return null;
+            }
+            keyColumns[k] = found;
+            keyLabels[k++] = StringUtils.quoteIdentifier(labels[found]);
+        }
+        String[] tableColumns = new String[columns];
+        for (int i = 0; i < columns; i++) {
+            if (columnNames[i] != null) {
+                tableColumns[i] = StringUtils.quoteIdentifier(columnNames[i]);
+            }
+        }
+        String table = (schema == null || schema.isEmpty() ? "" : StringUtils.quoteIdentifier(schema) + ".")
+                + StringUtils.quoteIdentifier(tableName);
+        return new EditWindow(sql, table, types, binary, tableColumns, keyColumns, keyLabels);
+    }
+
+    /**
+     * Read a page and render it as html table with the editing controls.
+     *
+     * @param conn the connection
+     * @param direction FIRST, NEXT or PREVIOUS
+     * @param session the session
+     * @return the html
+     */
+    String readPage(Connection conn, int direction, ServiceSession session) throws SQLException {
+        long time = System.currentTimeMillis();
+        Object[] from = null;
+        boolean inclusive = false;
+        if (direction == NEXT) {
+            from = getLastKey();
+            if (from != null) {
+                pageNumber++;
+            }
+        } else if (direction == PREVIOUS && pageNumber > 0) {
+            from = getPreviousPageStart(conn);
+            inclusive = true;
+            pageNumber = from == null ? 0 : pageNumber - 1;
+        } else {
+            pageNumber = 0;
+        }
+        ArrayList<Object> params = new ArrayList<>();
+        StringBuilder buff = new StringBuilder("SELECT * FROM (").append(sql).append(") T");
+        if (from != null) {
+            buff.append(" WHERE ");
+            appendKeyCondition(buff, from, inclusive, false, params);
+        }
+        appendOrderBy(buff, false);
+        StringBuilder html = new StringBuilder();
+        ArrayList<Object[]> pageKeys = new ArrayList<>();
+        int rows = 0;
+        try (PreparedStatement prep = conn.prepareStatement(buff.toString())) {
+            setParameters(prep, params);
+            prep.setMaxRows(PAGE_SIZE);
+            try (ResultSet rs = prep.executeQuery()) {
+                HtmlTableRenderer renderer = new HtmlTableRenderer(html, true);
+                renderer.session = session;
+                renderer.start(rs.getMetaData());
+                while (rs.next()) {
+                    pageKeys.add(readKey(rs));
+                    renderer.writeRow(rs, ++rows);
+                }
+                renderer.finish();
+            }
+        }
+        if (rows == 0 && direction == NEXT && from != null) {
+            // after the last page: stay on it, so that @edit_next and
+            // @edit_previous continue from there
+            pageNumber--;
+        } else {
+            keys.clear();
+            keys.addAll(pageKeys);
+        }
+        time = System.currentTimeMillis() - time;
+        long first = (long) pageNumber * PAGE_SIZE;
+        html.append('(');
+        if (rows == 0) {
+            html.append("${text.result.noRows}");
+        } else {
+            html.append(first + 1).append(" - ").append(first + rows).append(" ${text.result.rows}");
+        }
+        html.append(", ").append(time).append(" ms)<br />${text.result.editPages}");
+        return html.toString();
+    }
+
+    /**
+     * Estimate the memory of the keys of a full page. The keys themselves are
+     * not read, because they are changed by the requests.
+     *
+     * @return the size in bytes
+     */
+    long estimateMemory() {
+        return 256 + PAGE_SIZE * (32L + 32L * keyColumns.length);
+    }
+
+    private Object[] getLastKey() {
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            if (keys.get(i) != null) {
+                return keys.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the first key of the previous page, by reading the keys before the
+     * current page in descending order.
+     */
+    private Object[] getPreviousPageStart(Connection conn) throws SQLException {
+        Object[] firstKey = null;
+        for (Object[] k : keys) {
+            if (k != null) {
+                firstKey = k;
+                break;
+            }
+        }
+        if (firstKey == null) {
+            return null;
+        }
+        ArrayList<Object> params = new ArrayList<>();
+        StringBuilder buff = new StringBuilder("SELECT ");
+        for (int i = 0; i < keyLabels.length; i++) {
+            buff.append(i == 0 ? "" : ", ").append(keyLabels[i]);
+        }
+        buff.append(" FROM (").append(sql).append(") T WHERE ");
+        appendKeyCondition(buff, firstKey, false, true, params);
+        appendOrderBy(buff, true);
+        Object[] start = null;
+        try (PreparedStatement prep = conn.prepareStatement(buff.toString())) {
+            setParameters(prep, params);
+            prep.setMaxRows(PAGE_SIZE);
+            try (ResultSet rs = prep.executeQuery()) {
+                while (rs.next()) {
+                    start = new Object[keyLabels.length];
+                    for (int i = 0; i < start.length; i++) {
+                        start[i] = rs.getObject(i + 1);
+                    }
+                }
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Append the keyset condition (k1 > ?) OR (k1 = ? AND k2 > ?) ..., which
+     * also works where row value comparison is not supported.
+     */
+    private void appendKeyCondition(StringBuilder buff, Object[] key, boolean inclusive, boolean before,
+            ArrayList<Object> params) {
+        String op = before ? "<" : ">";
+        buff.append('(');
+        for (int i = 0; i < keyLabels.length; i++) {
+            if (i > 0) {
+                buff.append(" OR ");
+            }
+            buff.append('(');
+            for (int j = 0; j < i; j++) {
+                buff.append(keyLabels[j]).append(" = ? AND ");
+                params.add(key[j]);
+            }
+            boolean last = i == keyLabels.length - 1;
+            buff.append(keyLabels[i]).append(' ').append(op).append(inclusive && last ? "= ?" : " ?").append(')');
+            params.add(key[i]);
+        }
+        buff.append(')');
+    }
+
+    private void appendOrderBy(StringBuilder buff, boolean descending) {
+        buff.append(" ORDER BY ");
+        for (int i = 0; i < keyLabels.length; i++) {
+            buff.append(i == 0 ? "" : ", ").append(keyLabels[i]).append(descending ? " DESC" : "");
+        }
+    }
+
+    private Object[] readKey(ResultSet rs) throws SQLException {
+        Object[] key = new Object[keyColumns.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = rs.getObject(keyColumns[i] + 1);
+        }
+        return key;
+    }
+
+    private static void setParameters(PreparedStatement prep, ArrayList<Object> params) throws SQLException {
+        for (int i = 0, size = params.size(); i < size; i++) {
+            prep.setObject(i + 1, params.get(i));
+        }
+    }
+
+    /**
+     * Change a row of the current page.
+     *
+     * @param conn the connection
+     * @param row the row number in the page, starting with 1, or -1 to insert
+     *            a row
+     * @param op 1 to insert or update, 2 to delete, 3 to cancel
+     * @param values the new value by column index, or null to keep the value
+     * @param session the session
+     * @return the changed row as json
+     */
+    JsonObject edit(Connection conn, int row, int op, IntFunction<String> values, ServiceSession session)
+            throws SQLException {
+        JsonObject json = new JsonObject();
+        json.put("row", row);
+        json.put("op", op);
+        if (op == 1 && row < 0) {
+            insert(conn, values, json);
+            return json;
+        } else if (op != 1 && op != 2) {
+            return json;
+        }
+        Object[] key = row >= 1 && row <= keys.size() ? keys.get(row - 1) : null;
+        if (key == null) {
+            throw new SQLException("Row " + row + " is not part of the current page");
+        }
+        ArrayList<Object> params = new ArrayList<>();
+        StringBuilder buff;
+        if (op == 2) {
+            buff = new StringBuilder("DELETE FROM ").append(table);
+        } else {
+            buff = new StringBuilder("UPDATE ").append(table).append(" SET ");
+            int count = 0;
+            for (int i = 0; i < tableColumns.length; i++) {
+                String x = values.apply(i + 1);
+                if (tableColumns[i] == null || x == null || x.startsWith("=+")) {
+                    continue;
+                }
+                buff.append(count++ == 0 ? "" : ", ").append(tableColumns[i]).append(" = ?");
+                params.add(toValue(x, i));
+            }
+            if (count == 0) {
+                json.put("cells", new JsonArray(readRow(conn, key, session)));
+                return json;
+            }
+        }
+        buff.append(" WHERE ");
+        for (int i = 0; i < keyColumns.length; i++) {
+            buff.append(i == 0 ? "" : " AND ").append(tableColumns[keyColumns[i]]).append(" = ?");
+            params.add(key[i]);
+        }
+        try (PreparedStatement prep = conn.prepareStatement(buff.toString())) {
+            setParameters(prep, params);
+            if (prep.executeUpdate() == 0) {
+                throw new SQLException("The row was changed or deleted by someone else, read the page again");
+            }
+        }
+        if (op == 2) {
+            keys.set(row - 1, null);
+            json.put("deleted", true);
+            return json;
+        }
+        // the primary key may have been changed
+        Object[] newKey = key.clone();
+        for (int i = 0; i < keyColumns.length; i++) {
+            String x = values.apply(keyColumns[i] + 1);
+            if (x != null && !x.startsWith("=+")) {
+                newKey[i] = toValue(x, keyColumns[i]);
+            }
+        }
+        ArrayList<String> cells = readRow(conn, newKey, session);
+        if (cells != null) {
+            keys.set(row - 1, newKey);
+            json.put("cells", new JsonArray(cells));
+        }
+        return json;
+    }
+
+    private void insert(Connection conn, IntFunction<String> values, JsonObject json) throws SQLException {
+        StringBuilder buff = new StringBuilder("INSERT INTO ").append(table).append('(');
+        StringBuilder v = new StringBuilder();
+        ArrayList<Object> params = new ArrayList<>();
+        JsonArray entered = new JsonArray();
+        for (int i = 0; i < tableColumns.length; i++) {
+            String x = values.apply(i + 1);
+            entered.add(x);
+            if (tableColumns[i] == null || x == null || x.startsWith("=+")) {
+                continue;
+            }
+            if (!params.isEmpty()) {
+                buff.append(", ");
+                v.append(", ");
+            }
+            buff.append(tableColumns[i]);
+            v.append('?');
+            params.add(toValue(x, i));
+        }
+        buff.append(") VALUES(").append(v).append(')');
+        try (PreparedStatement prep = conn.prepareStatement(buff.toString())) {
+            setParameters(prep, params);
+            prep.executeUpdate();
+        }
+        // the new row is shown when the page is read again
+        json.put("values", entered);
+    }
+
+    /**
+     * Read a row of the query by primary key.
+     *
+     * @return the rendered cells, or null if the row is not part of the
+     *         result any more
+     */
+    private ArrayList<String> readRow(Connection conn, Object[] key, ServiceSession session) throws SQLException {
+        StringBuilder buff = new StringBuilder("SELECT * FROM (").append(sql).append(") T WHERE ");
+        for (int i = 0; i < keyLabels.length; i++) {
+            buff.append(i == 0 ? "" : " AND ").append(keyLabels[i]).append(" = ?");
+        }
+        try (PreparedStatement prep = conn.prepareStatement(buff.toString())) {
+            for (int i = 0; i < key.length; i++) {
+                prep.setObject(i + 1, key[i]);
+            }
+            try (ResultSet rs = prep.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                JsonGridRenderer renderer = new JsonGridRenderer();
+                renderer.session = session;
+                renderer.start(rs.getMetaData());
+                renderer.writeRow(rs, 1);
+                return renderer.takeRows().get(0);
+            }
+        }
+    }
+
+    /**
+     * Convert an entered value, see also QueryService.unescapeData.
+     */
+    private Object toValue(String x, int column) {
+        if (x.equals("null")) {
+            return null;
+        } else if (x.equals("=*")) {
+            switch (types[column]) {
+            case Types.TIME:
+                return "12:00:00";
+            case Types.TIMESTAMP:
+            case Types.DATE:
+                return "2001-01-01";
+            default:
+                return "1";
+            }
+        } else if (x.startsWith("= ")) {
+            x = x.substring(2);
+        }
+        if (binary[column]) {
+            return StringUtils.convertHexToBytes(x);
+        }
+        return x;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.h2.server.web.PageParser;
+
+/**
+ * Renders a result as a html table, optionally with the row editing controls.
+ */
+class HtmlTableRenderer extends ResultRenderer {
+
+    private final StringBuilder buff;
+    private final boolean edit;
+
+    HtmlTableRenderer(StringBuilder buff, boolean edit) {
+        this.buff = buff;
+        this.edit = edit;
+    }
+
+    @Override
+    protected void writeHeader() {
+        if (edit) {
+            buff.append("<form id=\"editing\" name=\"editing\" method=\"post\" "
+                    + "action=\"editResult.do?jsessionid=${sessionId}\" " + "id=\"mainForm\" target=\"h2result\">"
+                    + "<input type=\"hidden\" name=\"op\" value=\"1\" />"
+                    + "<input type=\"hidden\" name=\"row\" value=\"\" />"
+                    + "<table class=\"resultSet\" cellspacing=\"0\" cellpadding=\"0\" id=\"editTable\">");
+        } else {
+            buff.append("<table class=\"resultSet\" cellspacing=\"0\" cellpadding=\"0\">");
+        }
+        buff.append("<tr>");
+        if (edit) {
+            buff.append("<th>${text.resultEdit.action}</th>");
+        }
+        for (int i = 0; i < columns; i++) {
+            buff.append("<th>").append(PageParser.escapeHtml(columnLabels[i])).append("</th>");
+        }
+        buff.append("</tr>");
+    }
+
+    @Override
+    void writeRow(ResultSet rs, int rowNumber) throws SQLException {
+        buff.append("<tr>");
+        if (edit) {
+            int row = rs.getRow();
+            buff.append("<td>").append("<img onclick=\"javascript:editRow(").append(row)
+                    .append(",'${sessionId}', '${text.resultEdit.save}', " + "'${text.resultEdit.cancel}'")
+                    .append(")\" width=16 height=16 src=\"ico_write.gif\" "
+                            + "onmouseover = \"this.className ='icon_hover'\" "
+                            + "onmouseout = \"this.className ='icon'\" "
+                            + "class=\"icon\" alt=\"${text.resultEdit.edit}\" "
+                            + "title=\"${text.resultEdit.edit}\" border=\"1\"/>")
+                    .append("<img onclick=\"javascript:deleteRow(").append(row)
+                    .append(",'${sessionId}', '${text.resultEdit.delete}', " + "'${text.resultEdit.cancel}'")
+                    .append(")\" width=16 height=16 src=\"ico_remove.gif\" "
+                            + "onmouseover = \"this.className ='icon_hover'\" "
+                            + "onmouseout = \"this.className ='icon'\" "
+                            + "class=\"icon\" alt=\"${text.resultEdit.delete}\" "
+                            + "title=\"${text.resultEdit.delete}\" border=\"1\" /></a>")
+                    .append("</td>");
+        }
+        for (int i = 0; i < columns; i++) {
+            buff.append("<td>").append(getCell(rs, i + 1)).append("</td>");
+        }
+        buff.append("</tr>");
+    }
+
+    @Override
+    void finish() {
+        if (edit) {
+            buff.append("<tr><td>")
+                    .append("<img onclick=\"javascript:editRow(-1, "
+                            + "'${sessionId}', '${text.resultEdit.save}', '${text.resultEdit.cancel}'")
+                    .append(")\" width=16 height=16 src=\"ico_add.gif\" "
+                            + "onmouseover = \"this.className ='icon_hover'\" "
+                            + "onmouseout = \"this.className ='icon'\" "
+                            + "class=\"icon\" alt=\"${text.resultEdit.add}\" "
+                            + "title=\"${text.resultEdit.add}\" border=\"1\"/>")
+                    .append("</td>");
+            for (int i = 0; i < columns; i++) {
+                buff.append("<td></td>");
+            }
+            buff.append("</tr>");
+        }
+        buff.append("</table>");
+        if (edit) {
+            buff.append("</form>");
+        }
+    }
+}
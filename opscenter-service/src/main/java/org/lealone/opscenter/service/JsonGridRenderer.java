@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Renders the column names and rows used by the result-table page.
+ */
+class JsonGridRenderer extends ResultRenderer {
+
+    private final ArrayList<String> columnNames;
+    private ArrayList<ArrayList<String>> rows;
+
+    /**
+     * The ids of the registered LOBs, keyed by "row,column", both starting
+     * with 0.
+     */
+    private HashMap<String, Object> lobs = new HashMap<>();
+
+    JsonGridRenderer() {
+        this(new ArrayList<>(), new ArrayList<>());
+    }
+
+    JsonGridRenderer(ArrayList<String> columnNames, ArrayList<ArrayList<String>> rows) {
+        this.columnNames = columnNames;
+        this.rows = rows;
+    }
+
+    @Override
+    protected void writeHeader() {
+        Collections.addAll(columnNames, columnLabels);
+    }
+
+    @Override
+    void writeRow(ResultSet rs, int rowNumber) throws SQLException {
+        ArrayList<String> row = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            row.add(getCell(rs, i + 1));
+            if (lobId != 0) {
+                lobs.put((rowNumber - 1) + "," + i, lobId);
+            }
+        }
+        rows.add(row);
+    }
+
+    @Override
+    protected boolean isHtml() {
+        return false;
+    }
+
+    ArrayList<String> getColumnNames() {
+        return columnNames;
+    }
+
+    ArrayList<ArrayList<String>> getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the rows rendered so far and continue with an empty list.
+     *
+     * @return the rows
+     */
+    ArrayList<ArrayList<String>> takeRows() {
+        ArrayList<ArrayList<String>> r = rows;
+        rows = new ArrayList<>();
+        return r;
+    }
+
+    /**
+     * Get the LOBs registered so far and continue with an empty map.
+     *
+     * @return the LOB ids by "row,column"
+     */
+    HashMap<String, Object> takeLobs() {
+        HashMap<String, Object> l = lobs;
+        lobs = new HashMap<>();
+        return l;
+    }
+}
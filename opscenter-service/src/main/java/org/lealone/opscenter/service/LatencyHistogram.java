@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.Locale;
+
+/**
+ * A fixed size histogram of latencies in nanoseconds. Each power of two range
+ * is split into 32 linear sub buckets, so a percentile is reported with an
+ * error of at most about 3%.
+ * <p>
+ * This class is not synchronized: each thread records into its own instance,
+ * and the instances are merged with add.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    private static int getIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // keep the highest SUB_BUCKET_BITS + 1 bits, the top bit is implied by the shift
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long getHighestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[getIndex(nanos)]++;
+        count++;
+        sum += nanos;
+        if (nanos < min) {
+            min = nanos;
+        }
+        if (nanos > max) {
+            max = nanos;
+        }
+    }
+
+    /**
+     * Add all values of another histogram to this one.
+     *
+     * @param other the other histogram
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Get the value at the given percentile.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the highest value of the bucket that contains the percentile, in
+     *         nanoseconds
+     */
+    long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getHighestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Format a latency in milliseconds.
+     *
+     * @param nanos the latency in nanoseconds
+     * @return the formatted value
+     */
+    static String toMillis(long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f", nanos / 1_000_000d);
+    }
+
+    /**
+     * Get the percentiles that matter for tail latency, in milliseconds.
+     *
+     * @return p50, p95, p99, p99.9 and max
+     */
+    String getPercentileString() {
+        return "p50 " + toMillis(getPercentile(50)) + ", p95 " + toMillis(getPercentile(95)) + ", p99 "
+                + toMillis(getPercentile(99)) + ", p99.9 " + toMillis(getPercentile(99.9)) + ", max "
+                + toMillis(max);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.h2.server.web.PageParser;
+
+/**
+ * Renders a result as a html list with one line per column (the @list mode).
+ */
+class ListRenderer extends ResultRenderer {
+
+    private final StringBuilder buff;
+    private String[] escapedLabels;
+
+    ListRenderer(StringBuilder buff) {
+        this.buff = buff;
+    }
+
+    @Override
+    protected void writeHeader() {
+        escapedLabels = new String[columns];
+        for (int i = 0; i < columns; i++) {
+            escapedLabels[i] = PageParser.escapeHtml(columnLabels[i]);
+        }
+        buff.append("<table class=\"resultSet\" cellspacing=\"0\" cellpadding=\"0\">");
+        buff.append("<tr><th>Column</th><th>Data</th></tr><tr>");
+    }
+
+    @Override
+    void writeRow(ResultSet rs, int rowNumber) throws SQLException {
+        buff.append("<tr><td>Row #</td><td>").append(rowNumber).append("</tr>");
+        for (int i = 0; i < columns; i++) {
+            buff.append("<tr><td>").append(escapedLabels[i]).append("</td><td>").append(getCell(rs, i + 1))
+                    .append("</td></tr>");
+        }
+    }
+
+    @Override
+    void finish() {
+        buff.append("</table>");
+    }
+}
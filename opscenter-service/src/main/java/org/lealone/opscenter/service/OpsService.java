@@ -17,21 +17,14 @@
  */
 package org.lealone.opscenter.service;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 
-import org.lealone.common.exceptions.DbException;
 import org.lealone.common.util.StringUtils;
 import org.lealone.db.session.ServerSession;
 
@@ -124,8 +117,10 @@ public class OpsService extends Service {
             Connection conn = DriverManager.getConnection(url, prop);
             ServiceSession session = ServiceConfig.instance.createNewSession(null);
             session.setConnection(conn);
+            session.setConnectionProperties(prop);
             session.setServerSession(serverSession);
             session.put("url", url);
+            session.put("user", user);
             return session.get("sessionId").toString();
         } catch (SQLException e) {
             throw new RuntimeException("failed to login: " + e.getMessage(), e);
@@ -135,46 +130,16 @@ public class OpsService extends Service {
     public String logout(String jsessionid) {
         ServiceSession session = ServiceConfig.instance.removeSession(jsessionid);
         if (session != null) {
-            Connection conn = session.getConnection();
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                }
-            }
+            session.close();
         }
         return "ok";
     }
 
     public String readTranslations(String language) {
-        JsonObject json = new JsonObject();
         if (language == null)
             language = "zh_CN";
-        ServiceConfig instance = ServiceConfig.instance;
-        Locale locale = instance.getLocale(language);
-        language = locale.toString();
-        Map<String, Object> map = new HashMap<>();
-        Properties text = new Properties();
-        try {
-            instance.trace("translation: " + language);
-            byte[] trans = instance.getFile("_text_" + language.toLowerCase() + ".prop");
-            instance.trace("  " + new String(trans));
-            text = fromLines(new String(trans, StandardCharsets.UTF_8));
-            // remove starting # (if not translated yet)
-            for (Entry<Object, Object> entry : text.entrySet()) {
-                String value = (String) entry.getValue();
-                if (value.startsWith("#")) {
-                    entry.setValue(value.substring(1));
-                }
-                String key = entry.getKey().toString();
-                map.put(key, entry.getValue());
-            }
-        } catch (IOException e) {
-            DbException.traceThrowable(e);
-        }
-        map.put("language", language);
-        json.put("text", new JsonObject(map));
-        return json.encode();
+        // parsed once per language, see TranslationBundles
+        return TranslationBundles.instance.get(language).json;
     }
 
     /**
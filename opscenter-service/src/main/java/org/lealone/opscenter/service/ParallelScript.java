@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+/**
+ * Executes the queries of a script at the same time (@parallel), each on a
+ * pooled connection of the session, and merges the results in the order of
+ * the script. Only scripts that consist of queries are accepted.
+ * <p>
+ * The script itself holds one statement permit of the user (see
+ * QueryGovernor), which is used by the first connection. Every further
+ * connection takes one more permit, and fewer connections are used if the user
+ * has no permits left.
+ * <p>
+ * Usage: @parallel [threads=n] followed by the queries.
+ */
+class ParallelScript {
+
+    /**
+     * The number of threads shared by all parallel scripts.
+     */
+    private static final int THREADS = Utils.getProperty("lealone.opscenter.parallelThreads", 16);
+
+    /**
+     * The default number of queries of one script that run at the same time.
+     */
+    private static final int DEFAULT_CONNECTIONS = Utils.getProperty("lealone.opscenter.parallelConnections", 4);
+
+    private static final ThreadPoolExecutor executor = createExecutor();
+
+    private final ServiceSession session;
+    private final AsyncQuery asyncQuery;
+    private int connections = DEFAULT_CONNECTIONS;
+
+    ParallelScript(ServiceSession session, AsyncQuery asyncQuery) {
+        this.session = session;
+        this.asyncQuery = asyncQuery;
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "OpsCenterParallel-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Parse the options after @parallel.
+     *
+     * @param s the text after @parallel
+     * @return the rest of the text, the first statement of the script
+     */
+    String parseOptions(String s) {
+        if (s.startsWith("threads=")) {
+            int idx = s.indexOf(' ');
+            String n = idx < 0 ? s.substring("threads=".length()) : s.substring("threads=".length(), idx);
+            connections = Math.max(1, Math.min(Integer.parseInt(n), ServiceSession.MAX_POOLED_CONNECTIONS));
+            s = idx < 0 ? "" : StringUtils.trimSubstring(s, idx);
+        }
+        return s;
+    }
+
+    /**
+     * Execute the queries.
+     *
+     * @param list the queries
+     * @return the results as html, in the order of the script
+     */
+    String execute(List<String> list) throws SQLException {
+        ArrayList<String> queries = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            String sql = list.get(i).trim();
+            if (sql.isEmpty()) {
+                continue;
+            }
+            if (!ResultCache.isQuery(sql)) {
+                throw new SQLException("@parallel only runs queries, statement #" + (i + 1) + " is not a query: "
+                        + sql);
+            }
+            queries.add(sql);
+        }
+        int size = queries.size();
+        String[] results = new String[size];
+        AtomicInteger next = new AtomicInteger();
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        ArrayList<Semaphore> permits = new ArrayList<>();
+        ArrayList<AtomicBoolean> started = new ArrayList<>();
+        // each worker takes the next query until all are done,
+        // so that at most connections queries of this script run at the same time
+        for (int w = 0, workers = Math.min(connections, size); w < workers; w++) {
+            Semaphore permit = null;
+            if (w > 0) {
+                try {
+                    permit = QueryGovernor.enter(session);
+                } catch (SQLException e) {
+                    // the user is at the limit, the workers that have a permit run all queries
+                    break;
+                }
+            }
+            Semaphore workerPermit = permit;
+            AtomicBoolean workerStarted = new AtomicBoolean();
+            permits.add(workerPermit);
+            started.add(workerStarted);
+            futures.add(executor.submit(() -> {
+                if (!workerStarted.compareAndSet(false, true)) {
+                    // canceled before it started, the permit was given back by cancel
+                    return;
+                }
+                Connection conn = null;
+                int i = -1;
+                try {
+                    while ((i = next.getAndIncrement()) < size) {
+                        if (asyncQuery != null && asyncQuery.isCanceled()) {
+                            results[i] = "${text.result.statementWasCanceled}";
+                            continue;
+                        }
+                        QueryService service = new QueryService();
+                        service.session = session;
+                        if (conn == null) {
+                            conn = session.borrowConnection();
+                        }
+                        results[i] = service.queryParallel(conn, queries.get(i), i);
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    // the query that failed, and the ones this worker did not start
+                    String error = Service.formatAsError(e.getMessage() != null ? e.getMessage() : e.toString());
+                    for (; i < size; i = next.getAndIncrement()) {
+                        results[i] = error;
+                    }
+                } finally {
+                    if (conn != null) {
+                        session.returnConnection(conn);
+                    }
+                    QueryGovernor.exit(workerPermit);
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            cancel(futures, permits, started);
+            throw new SQLException("@parallel was interrupted", e);
+        } catch (ExecutionException e) {
+            cancel(futures, permits, started);
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            throw new SQLException(cause.toString(), cause);
+        }
+        StringBuilder buff = new StringBuilder();
+        for (String r : results) {
+            if (r != null) {
+                buff.append(r).append("<br />");
+            }
+        }
+        return buff.toString();
+    }
+
+    private static void cancel(List<Future<?>> futures, List<Semaphore> permits, List<AtomicBoolean> started) {
+        for (int i = 0; i < futures.size(); i++) {
+            if (started.get(i).compareAndSet(false, true)) {
+                // the worker will not run, so it can not give back its permit
+                QueryGovernor.exit(permits.get(i));
+            }
+            futures.get(i).cancel(true);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.util.Utils;
+
+/**
+ * The bounded worker pool that executes the asynchronous queries.
+ */
+class QueryExecutor {
+
+    /**
+     * The number of query worker threads.
+     */
+    private static final int THREADS = Utils.getProperty("lealone.opscenter.queryThreads", 8);
+
+    /**
+     * The number of queries that may wait for a worker thread.
+     */
+    private static final int QUEUE_SIZE = Utils.getProperty("lealone.opscenter.queryQueueSize", 100);
+
+    private static final ThreadPoolExecutor executor = createExecutor();
+
+    private QueryExecutor() {
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "OpsCenterQuery-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Submit a query.
+     *
+     * @param query the query
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full
+     */
+    static void submit(AsyncQuery query) {
+        query.future = executor.submit(query);
+    }
+
+    static int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    static int getQueueSize() {
+        return executor.getQueue().size();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.h2.api.ErrorCode;
+import org.h2.util.Utils;
+
+/**
+ * Limits the resources a session can use: the execution time of a statement,
+ * the memory of a result that is read into memory, and the number of
+ * statements that are executed at the same time for one user.
+ * <p>
+ * The global limits are set with system properties. A session can lower the
+ * limits for itself with @query_timeout and @max_result_bytes, but not raise
+ * them above the global limits.
+ */
+class QueryGovernor {
+
+    /**
+     * The global statement timeout in seconds, 0 for no timeout.
+     */
+    private static final int QUERY_TIMEOUT = Utils.getProperty("lealone.opscenter.queryTimeout", 0);
+
+    /**
+     * The global maximum size of a result in memory, in bytes, 0 for no limit.
+     */
+    private static final int MAX_RESULT_BYTES = Utils.getProperty("lealone.opscenter.maxResultBytes",
+            64 * 1024 * 1024);
+
+    /**
+     * The maximum number of statements a user can execute at the same time, 0
+     * for no limit.
+     */
+    private static final int MAX_USER_STATEMENTS = Utils.getProperty("lealone.opscenter.maxUserStatements", 4);
+
+    private static final ConcurrentHashMap<String, Semaphore> userPermits = new ConcurrentHashMap<>();
+
+    private QueryGovernor() {
+    }
+
+    private static int getLimit(ServiceSession session, String key, int global) {
+        Object v = session.get(key);
+        int local = v == null ? 0 : Integer.parseInt(v.toString());
+        if (local <= 0) {
+            return global;
+        }
+        return global <= 0 ? local : Math.min(local, global);
+    }
+
+    /**
+     * Get the statement timeout of the session.
+     *
+     * @param session the session
+     * @return the timeout in seconds, 0 for no timeout
+     */
+    static int getQueryTimeout(ServiceSession session) {
+        return getLimit(session, "queryTimeout", QUERY_TIMEOUT);
+    }
+
+    /**
+     * Get the maximum size of a result in memory of the session.
+     *
+     * @param session the session
+     * @return the size in bytes, 0 for no limit
+     */
+    static long getMaxResultBytes(ServiceSession session) {
+        return getLimit(session, "maxResultBytes", MAX_RESULT_BYTES);
+    }
+
+    /**
+     * Set the timeout of the session on the statement.
+     *
+     * @param session the session
+     * @param stat the statement
+     */
+    static void setQueryTimeout(ServiceSession session, Statement stat) throws SQLException {
+        stat.setQueryTimeout(getQueryTimeout(session));
+    }
+
+    /**
+     * Reserve one of the statement permits of the user of the session. Fails at
+     * once if the user already executes the maximum number of statements.
+     *
+     * @param session the session
+     * @return the permit, to be given back with exit, or null if there is no
+     *         limit
+     */
+    static Semaphore enter(ServiceSession session) throws SQLException {
+        if (MAX_USER_STATEMENTS <= 0 || session == null) {
+            return null;
+        }
+        Object user = session.get("user");
+        String key = user != null ? user.toString() : String.valueOf(session.get("sessionId"));
+        Semaphore permits = userPermits.computeIfAbsent(key, k -> new Semaphore(MAX_USER_STATEMENTS));
+        if (!permits.tryAcquire()) {
+            throw new SQLException("User " + key + " already executes " + MAX_USER_STATEMENTS
+                    + " statements, please try again later", "57014", ErrorCode.STATEMENT_WAS_CANCELED);
+        }
+        return permits;
+    }
+
+    /**
+     * Give back a permit reserved with enter.
+     *
+     * @param permits the permit, or null
+     */
+    static void exit(Semaphore permits) {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
+    /**
+     * Replace the exception of a statement that was canceled because of the
+     * timeout with an exception that explains why.
+     *
+     * @param session the session
+     * @param e the exception
+     * @param startTime when the statement was started
+     * @return the exception to report
+     */
+    static SQLException explain(ServiceSession session, SQLException e, long startTime) {
+        int timeout = getQueryTimeout(session);
+        if (timeout <= 0) {
+            return e;
+        }
+        boolean canceled = e instanceof SQLTimeoutException || e.getErrorCode() == ErrorCode.STATEMENT_WAS_CANCELED;
+        if (!canceled || System.currentTimeMillis() - startTime < timeout * 1000L) {
+            return e;
+        }
+        return new SQLTimeoutException("The statement was canceled after the time limit of " + timeout
+                + " seconds, see @query_timeout", e.getSQLState(), e.getErrorCode(), e);
+    }
+
+    /**
+     * Get the message shown when a result is truncated because it is too
+     * large.
+     *
+     * @param maxBytes the limit
+     * @return the message
+     */
+    static String getTruncatedMessage(long maxBytes) {
+        return "The result was truncated at " + maxBytes / 1024 + " KB, see @max_result_bytes";
+    }
+
+    static String getInfoString(ServiceSession session) {
+        int timeout = getQueryTimeout(session);
+        long maxBytes = getMaxResultBytes(session);
+        return "Query timeout: " + (timeout > 0 ? timeout + " s" : "none") + ", max result bytes: "
+                + (maxBytes > 0 ? maxBytes : "none") + ", max statements per user: "
+                + (MAX_USER_STATEMENTS > 0 ? MAX_USER_STATEMENTS : "none");
+    }
+}
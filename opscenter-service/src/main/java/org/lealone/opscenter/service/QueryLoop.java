@@ -0,0 +1,352 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import org.h2.message.DbException;
+import org.h2.util.JdbcUtils;
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+/**
+ * The load generator behind the @loop command.
+ * <p>
+ * Usage: @loop count [threads=n] [virtual=true] [warmup=n] [rate=n]
+ * [duration=seconds] [fetch=true] [@statement] sql
+ * <p>
+ * Each thread uses its own connection. Parameters are set to the iteration
+ * number, or to a random number below count for ?/*rnd*&#47;. With a rate, the
+ * latency is measured from the time an operation was scheduled to start, so
+ * that a stalled database is not hidden by the threads waiting for it.
+ */
+class QueryLoop {
+
+    /**
+     * The maximum number of threads of a loop.
+     */
+    private static final int MAX_THREADS = Utils.getProperty("lealone.opscenter.loopMaxThreads", 256);
+
+    private final int count;
+    private String sql;
+    private boolean prepared = true;
+    private final ArrayList<Integer> params = new ArrayList<>();
+
+    private int threads = 1;
+    private boolean virtual;
+    private int warmup;
+    private int rate;
+    private int duration;
+    private boolean fetch;
+
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private volatile boolean stop;
+    private volatile Throwable error;
+    private BooleanSupplier canceled;
+
+    /**
+     * Parse the options and the statement of a loop.
+     *
+     * @param count the number of iterations, or the range of the random
+     *            parameters if a duration is given
+     * @param sql the options followed by the statement
+     */
+    QueryLoop(int count, String sql) {
+        this.count = count;
+        while (true) {
+            int idx = sql.indexOf(' ');
+            int eq = sql.indexOf('=');
+            if (idx < 0 || eq < 0 || eq > idx || !parseOption(sql.substring(0, eq), sql.substring(eq + 1, idx))) {
+                break;
+            }
+            sql = StringUtils.trimSubstring(sql, idx);
+        }
+        if (JdbcUtils.isBuiltIn(sql, "@statement")) {
+            sql = StringUtils.trimSubstring(sql, "@statement".length());
+            prepared = false;
+        }
+        int idx = 0;
+        while (true) {
+            idx = sql.indexOf('?', idx);
+            if (idx < 0) {
+                break;
+            }
+            if (JdbcUtils.isBuiltIn(sql.substring(idx), "?/*rnd*/")) {
+                params.add(1);
+                sql = sql.substring(0, idx) + "?" + sql.substring(idx + "/*rnd*/".length() + 1);
+            } else {
+                params.add(0);
+            }
+            idx++;
+        }
+        this.sql = sql;
+    }
+
+    private boolean parseOption(String key, String value) {
+        switch (key) {
+        case "threads":
+            threads = Integer.parseInt(value);
+            if (threads < 1 || threads > MAX_THREADS) {
+                throw DbException.getInvalidValueException("threads", value);
+            }
+            return true;
+        case "virtual":
+            virtual = Boolean.parseBoolean(value);
+            return true;
+        case "warmup":
+            warmup = Integer.parseInt(value);
+            return true;
+        case "rate":
+            rate = Integer.parseInt(value);
+            return true;
+        case "duration":
+            duration = Integer.parseInt(value);
+            return true;
+        case "fetch":
+            fetch = Boolean.parseBoolean(value);
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Run the loop and get the report.
+     *
+     * @param session the session, used to open the connections of the other
+     *            threads
+     * @param conn the connection of the first thread
+     * @param canceled whether the loop was canceled by the user
+     * @return the report
+     */
+    String run(ServiceSession session, Connection conn, BooleanSupplier canceled) throws SQLException {
+        this.canceled = canceled;
+        Connection[] connections = new Connection[threads];
+        connections[0] = conn;
+        ExecutorService executor = null;
+        try {
+            for (int i = 1; i < threads; i++) {
+                connections[i] = session.openConnection();
+            }
+            CountDownLatch warmedUp = new CountDownLatch(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            executor = createExecutor();
+            long[] startTime = new long[1];
+            for (int i = 0; i < threads; i++) {
+                Connection c = connections[i];
+                int threadId = i;
+                executor.execute(() -> {
+                    try {
+                        runThread(c, threadId, warmedUp, startTime);
+                    } catch (Throwable e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                        stop = true;
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            warmedUp.await();
+            long time = System.nanoTime();
+            synchronized (startTime) {
+                startTime[0] = time;
+                startTime.notifyAll();
+            }
+            done.await();
+            time = System.nanoTime() - time;
+            if (error != null) {
+                throw DbException.convert(error);
+            }
+            return getReport(time);
+        } catch (InterruptedException e) {
+            stop = true;
+            throw DbException.convert(e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (int i = 1; i < threads; i++) {
+                JdbcUtils.closeSilently(connections[i]);
+            }
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        if (virtual) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw DbException.getUnsupportedException("virtual threads need Java 21 or later");
+            }
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "OpsCenterLoop-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private boolean isStopped() {
+        return stop || canceled.getAsBoolean();
+    }
+
+    private void runThread(Connection conn, int threadId, CountDownLatch warmedUp, long[] startTime)
+            throws SQLException, InterruptedException {
+        LatencyHistogram h = new LatencyHistogram();
+        Random random = new Random(1 + threadId);
+        Statement stat = null;
+        PreparedStatement prep = null;
+        boolean ready = false;
+        try {
+            if (prepared) {
+                prep = conn.prepareStatement(sql);
+            } else {
+                stat = conn.createStatement();
+            }
+            for (int i = 0; i < warmup && !isStopped(); i++) {
+                execute(stat, prep, random, i);
+            }
+            ready = true;
+            warmedUp.countDown();
+            long start;
+            synchronized (startTime) {
+                while (startTime[0] == 0) {
+                    startTime.wait();
+                }
+                start = startTime[0];
+            }
+            long deadline = duration > 0 ? start + TimeUnit.SECONDS.toNanos(duration) : Long.MAX_VALUE;
+            long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * threads / rate : 0;
+            long scheduled = start + interval * threadId / threads;
+            while (!isStopped()) {
+                long i = next.getAndIncrement();
+                if (duration > 0 ? System.nanoTime() >= deadline : i >= count) {
+                    break;
+                }
+                long t;
+                if (interval > 0) {
+                    t = scheduled;
+                    scheduled += interval;
+                    long wait = t - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    t = System.nanoTime();
+                }
+                execute(stat, prep, random, i);
+                h.record(System.nanoTime() - t);
+            }
+        } finally {
+            if (!ready) {
+                warmedUp.countDown();
+            }
+            JdbcUtils.closeSilently(stat);
+            JdbcUtils.closeSilently(prep);
+            synchronized (histogram) {
+                histogram.add(h);
+            }
+        }
+    }
+
+    private void execute(Statement stat, PreparedStatement prep, Random random, long i) throws SQLException {
+        int range = Math.max(count, 1);
+        boolean hasResultSet;
+        if (prepared) {
+            for (int j = 0; j < params.size(); j++) {
+                if (params.get(j) == 1) {
+                    prep.setInt(j + 1, random.nextInt(range));
+                } else {
+                    prep.setLong(j + 1, i);
+                }
+            }
+            hasResultSet = prep.execute();
+            stat = prep;
+        } else {
+            String s = sql;
+            for (Integer type : params) {
+                int idx = s.indexOf('?');
+                s = s.substring(0, idx) + (type == 1 ? random.nextInt(range) : i) + s.substring(idx + 1);
+            }
+            hasResultSet = stat.execute(s);
+        }
+        if (hasResultSet) {
+            try (ResultSet rs = stat.getResultSet()) {
+                int columns = fetch ? rs.getMetaData().getColumnCount() : 0;
+                long r = 0;
+                while (!stop && rs.next()) {
+                    for (int c = 1; c <= columns; c++) {
+                        rs.getObject(c);
+                    }
+                    r++;
+                }
+                rows.addAndGet(r);
+            }
+        }
+    }
+
+    long getRows() {
+        return rows.get();
+    }
+
+    private String getReport(long nanos) {
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        long ops = histogram.getCount();
+        StringBuilder builder = new StringBuilder().append(ms).append(" ms: ").append(ops).append(" * ")
+                .append(prepared ? "(Prepared) " : "(Statement) ").append('(');
+        for (int i = 0, size = params.size(); i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(params.get(i) == 0 ? "i" : "rnd");
+        }
+        builder.append(") ").append(sql).append("<br />");
+        builder.append("threads: ").append(threads).append(virtual ? " (virtual)" : "");
+        builder.append(", warmup: ").append(warmup);
+        if (rate > 0) {
+            builder.append(", target rate: ").append(rate).append(" ops/s");
+        }
+        if (duration > 0) {
+            builder.append(", duration: ").append(duration).append(" s");
+        }
+        builder.append("<br />throughput: ").append(nanos == 0 ? 0 : ops * 1_000_000_000L / nanos).append(" ops/s, ")
+                .append(fetch ? "fetched " : "read ").append(rows.get()).append(" rows");
+        builder.append("<br />latency ms: ").append(histogram.getPercentileString()).append(", mean ")
+                .append(LatencyHistogram.toMillis(histogram.getMean()));
+        return builder.toString();
+    }
+}
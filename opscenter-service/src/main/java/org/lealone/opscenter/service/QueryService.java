@@ -17,29 +17,35 @@
  */
 package org.lealone.opscenter.service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.Connection;
 import java.sql.ParameterMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Random;
+import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntFunction;
 
 import org.h2.command.Parser;
 import org.h2.engine.Constants;
-import org.h2.engine.SysProperties;
 import org.h2.security.SHA256;
 import org.h2.server.web.PageParser;
 import org.h2.tools.SimpleResultSet;
 import org.h2.util.JdbcUtils;
-import org.h2.util.Profiler;
 import org.h2.util.ScriptReader;
 import org.h2.util.StringUtils;
 import org.h2.value.DataType;
@@ -49,13 +55,59 @@ import io.vertx.core.json.JsonObject;
 
 public class QueryService extends Service {
 
-    private Profiler profiler;
-
     /**
      * Whether to close the connection.
      */
     private boolean stop;
 
+    /**
+     * The grid of the last result, used by the result-table page.
+     */
+    private final ArrayList<String> columnNames = new ArrayList<>();
+    private final ArrayList<ArrayList<String>> rows = new ArrayList<>();
+    private String queryInfo;
+    private final HashMap<String, Object> lobs = new HashMap<>();
+
+    /**
+     * The asynchronous query this instance executes, or null.
+     */
+    AsyncQuery asyncQuery;
+
+    /**
+     * Whether results are rendered as html tables instead of the json grid.
+     */
+    private boolean htmlResults;
+
+    /**
+     * When the current statement was started, used to explain timeouts.
+     */
+    private long statementStart;
+
+    /**
+     * The number of rows of the last result rendered by getResultSet.
+     */
+    private long resultRows;
+
+    /**
+     * Whether the prepared statements of the session connection can be used.
+     * Not for the pooled connections of @parallel.
+     */
+    private boolean useStatementCache = true;
+
+    /**
+     * Lealone keeps one instance of a service and calls it from several
+     * threads at the same time, so a call that needs the session or the grid
+     * uses an instance of its own.
+     *
+     * @param jsessionid the session id
+     * @return the new instance
+     */
+    private static QueryService forSession(String jsessionid) {
+        QueryService service = new QueryService();
+        service.session = ServiceConfig.instance.getSession(jsessionid);
+        return service;
+    }
+
     private int getMaxrows() {
         String r = (String) session.get("maxrows");
         return r == null ? 0 : Integer.parseInt(r);
@@ -79,7 +131,177 @@ public class QueryService extends Service {
         buff.append(getResult(conn, i + 1, s, size == 1, forceEdit));
     }
 
+    /**
+     * Execute one query of a @parallel script on a pooled connection.
+     *
+     * @param conn the pooled connection
+     * @param s the query
+     * @param i the index of the query in the script
+     * @return the statement and its result as html
+     */
+    String queryParallel(Connection conn, String s, int i) {
+        htmlResults = true;
+        useStatementCache = false;
+        StringBuilder buff = new StringBuilder();
+        buff.append(PageParser.escapeHtml(s + ";")).append("<br />");
+        buff.append(getResult(conn, i + 1, s, false, false));
+        return buff.toString();
+    }
+
     public String query(String jsessionid, String sql) {
+        return forSession(jsessionid).execute(sql);
+    }
+
+    /**
+     * Execute the statements and write the result of each statement to the
+     * sink as html as soon as the statement is completed, so that the results
+     * of a long script are not buffered.
+     *
+     * @param jsessionid the session id
+     * @param sql the statements
+     * @param sink the target
+     */
+    public void streamQuery(String jsessionid, String sql, ResultSink sink) {
+        forSession(jsessionid).streamQuery(sql, sink);
+    }
+
+    private void streamQuery(String sql, ResultSink sink) {
+        if (session == null) {
+            // unknown or expired session id, the client gets the error
+            // instead of an empty response
+            sink.write(formatAsError("Not logged in"));
+            return;
+        }
+        htmlResults = true;
+        Semaphore permit = null;
+        SamplingProfiler.instance.enterSession(session.get("sessionId"));
+        try {
+            permit = QueryGovernor.enter(session);
+            if (!ServiceConfig.instance.getAllowChunked() || JdbcUtils.isBuiltIn(sql.trim(), "@batch")
+                    || JdbcUtils.isBuiltIn(sql.trim(), "@parallel")) {
+                // a batch only writes its summary, the results of @parallel are merged in order
+                sink.write(executeStatements(sql));
+                return;
+            }
+            Connection conn = session.getConnection();
+            ScriptReader r = new ScriptReader(new StringReader(sql));
+            for (int i = 0;; i++) {
+                String s = r.readStatement();
+                if (s == null) {
+                    break;
+                }
+                StringBuilder buff = new StringBuilder();
+                query(conn, s, i, 0, buff);
+                buff.append("<br />");
+                if (!sink.write(buff.toString())) {
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            sink.write(getStackTrace(0, e, session.isH2()));
+        } finally {
+            QueryGovernor.exit(permit);
+            SamplingProfiler.instance.exitSession();
+        }
+    }
+
+    /**
+     * Submit a query to the query worker pool. The query id is returned at
+     * once, the result is read with queryStatus.
+     *
+     * @param jsessionid the session id
+     * @param sql the statements
+     * @return the query id and the state as json
+     */
+    public String submitQuery(String jsessionid, String sql) {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        if (session == null) {
+            // unknown or expired session id, shown like a rejected query
+            return rejected("Not logged in");
+        }
+        AsyncQuery query = session.addAsyncQuery(sql);
+        try {
+            session.submitAsyncQuery(query);
+        } catch (RejectedExecutionException e) {
+            session.removeAsyncQuery(query.id);
+            return rejected("Too many queries are running, please try again later");
+        }
+        return query.getStatus().encode();
+    }
+
+    private static String rejected(String message) {
+        JsonObject json = new JsonObject();
+        json.put("state", "rejected");
+        json.put("result", formatAsError(message));
+        return json.encode();
+    }
+
+    private static String unknownQuery(Integer queryId) {
+        JsonObject json = new JsonObject();
+        json.put("queryId", queryId);
+        json.put("state", "unknown");
+        return json.encode();
+    }
+
+    /**
+     * Get the state and the progress of a submitted query. When the query is
+     * finished, the result is included and the query is removed.
+     *
+     * @param jsessionid the session id
+     * @param queryId the query id
+     * @return the state as json
+     */
+    public String queryStatus(String jsessionid, Integer queryId) {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        AsyncQuery query = session == null ? null : session.getAsyncQuery(queryId);
+        if (query == null) {
+            return unknownQuery(queryId);
+        }
+        JsonObject json = query.getStatus();
+        if (query.isFinished()) {
+            session.removeAsyncQuery(queryId);
+        }
+        return json.encode();
+    }
+
+    public String cancelQuery(String jsessionid, Integer queryId) {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        AsyncQuery query = session == null ? null : session.getAsyncQuery(queryId);
+        if (query == null) {
+            return unknownQuery(queryId);
+        }
+        query.cancel();
+        return query.getStatus().encode();
+    }
+
+    /**
+     * Execute the statements with the current session.
+     *
+     * @param sql the statements
+     * @return the result, either html or the result-table json
+     */
+    String execute(String sql) {
+        Semaphore permit = null;
+        // @cancel must work when the user is at the limit
+        if (!JdbcUtils.isBuiltIn(sql.trim(), "@cancel")) {
+            try {
+                permit = QueryGovernor.enter(session);
+            } catch (SQLException e) {
+                return formatAsError(e.getMessage());
+            }
+        }
+        SamplingProfiler.instance.enterSession(session.get("sessionId"));
+        try {
+            return executeStatements(sql);
+        } finally {
+            SamplingProfiler.instance.exitSession();
+            QueryGovernor.exit(permit);
+        }
+    }
+
+    private String executeStatements(String sql) {
+        String result;
+        boolean canceled = false;
         try {
             ScriptReader r = new ScriptReader(new StringReader(sql));
             final ArrayList<String> list = new ArrayList<>();
@@ -90,64 +312,387 @@ public class QueryService extends Service {
                 }
                 list.add(s);
             }
-            session = ServiceConfig.instance.getSession(jsessionid);
             final Connection conn = session.getConnection();
-            if (SysProperties.CONSOLE_STREAM && ServiceConfig.instance.getAllowChunked()) {
-                String page = new String(ServiceConfig.instance.getFile("result.jsp"), StandardCharsets.UTF_8);
-                int idx = page.indexOf("${result}");
-                // the first element of the list is the header, the last the
-                // footer
-                list.add(0, page.substring(0, idx));
-                list.add(page.substring(idx + "${result}".length()));
-                session.put("chunks", new Iterator<String>() {
-                    private int i;
-
-                    @Override
-                    public boolean hasNext() {
-                        return i < list.size();
-                    }
-
-                    @Override
-                    public String next() {
-                        String s = list.get(i++);
-                        if (i == 1 || i == list.size()) {
-                            return s;
-                        }
-                        StringBuilder b = new StringBuilder();
-                        query(conn, s, i - 1, list.size() - 2, b);
-                        return b.toString();
-                    }
-                });
-                return "result.jsp";
+            if (!list.isEmpty() && JdbcUtils.isBuiltIn(list.get(0).trim(), "@batch")) {
+                ScriptBatcher batcher = new ScriptBatcher(session, asyncQuery);
+                String first = batcher.parseOptions(StringUtils.trimSubstring(list.get(0).trim(), "@batch".length()));
+                list.set(0, first);
+                return batcher.execute(conn, list);
+            }
+            if (!list.isEmpty() && JdbcUtils.isBuiltIn(list.get(0).trim(), "@parallel")) {
+                ParallelScript parallel = new ParallelScript(session, asyncQuery);
+                String first = parallel
+                        .parseOptions(StringUtils.trimSubstring(list.get(0).trim(), "@parallel".length()));
+                list.set(0, first);
+                result = parallel.execute(list);
+                session.put("result", result);
+                return result;
+            }
+            if (list.size() == 1 && ResultCache.isQuery(list.get(0).trim())) {
+                // a single query is read page by page through a server side cursor,
+                // other statements keep the html result (update count, tree refresh)
+                return openResult(conn, list.get(0).trim(), 0);
             }
-            String result;
             StringBuilder buff = new StringBuilder();
             for (int i = 0; i < list.size(); i++) {
+                if (isCanceled()) {
+                    appendNotRun(buff, list, i);
+                    canceled = true;
+                    break;
+                }
                 String s = list.get(i);
                 query(conn, s, i, list.size(), buff);
             }
             result = buff.toString();
             session.put("result", result);
         } catch (Throwable e) {
-            session.put("result", getStackTrace(0, e, session.isH2()));
+            result = getStackTrace(0, e, session.isH2());
+            session.put("result", result);
         }
-        if (!session.columnNames.isEmpty()) {
+        if (canceled) {
+            // the statements that were not run are only listed in the html
+            columnNames.clear();
+            rows.clear();
+            lobs.clear();
+            queryInfo = null;
+        } else if (!columnNames.isEmpty()) {
             JsonObject json = new JsonObject();
-            json.put("columnNames", new JsonArray(session.columnNames));
-            json.put("rows", new JsonArray(session.rows));
+            json.put("columnNames", new JsonArray(columnNames));
+            json.put("rows", new JsonArray(rows));
             json.put("sql", sql);
             json.put("type", "result-table");
-            json.put("queryInfo", session.queryInfo);
+            json.put("queryInfo", queryInfo);
+            if (!lobs.isEmpty()) {
+                json.put("lobs", new JsonObject(lobs));
+            }
             String str = json.encode();
-            session.columnNames.clear();
-            session.rows.clear();
-            session.queryInfo = null;
+            columnNames.clear();
+            rows.clear();
+            lobs.clear();
+            queryInfo = null;
             return str;
         }
-        return session.get("result").toString();
+        return result;
+    }
+
+    private boolean isCanceled() {
+        return stop || asyncQuery != null && asyncQuery.isCanceled();
+    }
+
+    /**
+     * Append the statements of a canceled script that were not run.
+     */
+    private static void appendNotRun(StringBuilder buff, ArrayList<String> list, int from) {
+        buff.append("${text.result.statementWasCanceled}<br />${text.result.notRun}<br />");
+        for (int i = from; i < list.size(); i++) {
+            buff.append(PageParser.escapeHtml(list.get(i).trim() + ";")).append("<br />");
+        }
+    }
+
+    /**
+     * Execute a statement and open a server side cursor if it returns a result
+     * set. Only the first page of rows is read.
+     *
+     * @param jsessionid the session id
+     * @param sql the statement
+     * @param pageSize the number of rows per page, 0 for the default
+     * @return the first page as json, or the update count
+     */
+    public String openResult(String jsessionid, String sql, Integer pageSize) {
+        return forSession(jsessionid).openResult(sql, pageSize);
+    }
+
+    private String openResult(String sql, Integer pageSize) {
+        if (session == null) {
+            return formatAsError("Not logged in");
+        }
+        Semaphore permit = null;
+        try {
+            permit = QueryGovernor.enter(session);
+            return openResult(session.getConnection(), sql.trim(), pageSize == null ? 0 : pageSize);
+        } catch (Throwable e) {
+            return getStackTrace(0, e, session.isH2());
+        } finally {
+            QueryGovernor.exit(permit);
+        }
+    }
+
+    /**
+     * Read the next page of an open cursor. The cursor is closed after the last
+     * page.
+     *
+     * @param jsessionid the session id
+     * @param resultId the result id
+     * @return the page as json
+     */
+    public String fetchResult(String jsessionid, Integer resultId) {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        // the cursors of an expired session are already closed
+        ResultCursor cursor = session == null ? null : session.getCursor(resultId);
+        if (cursor == null) {
+            JsonObject json = new JsonObject();
+            json.put("resultId", resultId);
+            json.put("rows", new JsonArray());
+            json.put("hasMore", false);
+            return json.encode();
+        }
+        try {
+            long rowCount = cursor.getRowCount();
+            JsonObject json = cursor.nextPageAsJson(session);
+            StatementStats.instance.addRows(cursor.sql, cursor.getRowCount() - rowCount);
+            if (!cursor.hasMore()) {
+                session.closeCursor(resultId);
+            }
+            return json.encode();
+        } catch (Throwable e) {
+            session.closeCursor(resultId);
+            return getStackTrace(0, e, session.isH2());
+        }
+    }
+
+    public String closeResult(String jsessionid, Integer resultId) {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        return session != null && session.closeCursor(resultId) ? "ok" : "closed";
+    }
+
+    /**
+     * Execute a query and write the whole result to the sink as CSV or JSON
+     * Lines. A separate connection is used if possible, so that the console
+     * can be used during a long export.
+     *
+     * @param jsessionid the session id
+     * @param sql the query
+     * @param format csv or jsonl
+     * @param gzip whether to compress the export
+     * @param sink the target
+     * @return the number of rows
+     */
+    public long exportQuery(String jsessionid, String sql, String format, boolean gzip, ResultSink sink)
+            throws SQLException, IOException {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        if (session == null) {
+            throw new SQLException("Not logged in");
+        }
+        sql = sql.trim();
+        if (!ResultCache.isQuery(sql)) {
+            throw new SQLException("Only queries can be exported: " + sql);
+        }
+        Semaphore permit = QueryGovernor.enter(session);
+        Connection conn;
+        try {
+            conn = session.openConnection();
+        } catch (SQLException e) {
+            conn = null;
+        }
+        SamplingProfiler.instance.enterSession(session.get("sessionId"));
+        try {
+            return ResultExporter.export(conn != null ? conn : session.getConnection(), sql, format, gzip, sink);
+        } finally {
+            SamplingProfiler.instance.exitSession();
+            JdbcUtils.closeSilently(conn);
+            QueryGovernor.exit(permit);
+        }
+    }
+
+    /**
+     * Get the content type of an export.
+     *
+     * @param format csv or jsonl
+     * @param gzip whether the export is compressed
+     * @return the content type
+     */
+    public static String getExportContentType(String format, boolean gzip) {
+        return ResultExporter.getContentType(format, gzip);
+    }
+
+    /**
+     * Get the content type of a LOB registered by a result.
+     *
+     * @param jsessionid the session id
+     * @param lobId the LOB id
+     * @return the content type, or null if there is no such LOB
+     */
+    public String getLobContentType(String jsessionid, Integer lobId) {
+        ServiceSession s = ServiceConfig.instance.getSession(jsessionid);
+        Object lob = s == null ? null : s.getLob(lobId);
+        if (lob instanceof Blob) {
+            return "application/octet-stream";
+        } else if (lob instanceof Clob) {
+            return "text/plain; charset=utf-8";
+        }
+        return null;
+    }
+
+    /**
+     * Write the full value of a LOB registered by a result to the sink, in
+     * chunks, without reading it into memory.
+     *
+     * @param jsessionid the session id
+     * @param lobId the LOB id
+     * @param sink the target
+     */
+    public void streamLob(String jsessionid, Integer lobId, ResultSink sink) throws SQLException, IOException {
+        ServiceSession session = ServiceConfig.instance.getSession(jsessionid);
+        Object lob = session == null ? null : session.getLob(lobId);
+        if (lob instanceof Blob) {
+            try (InputStream in = ((Blob) lob).getBinaryStream()) {
+                byte[] buff = new byte[Constants.IO_BUFFER_SIZE * 4];
+                for (int len; (len = in.read(buff)) > 0;) {
+                    if (!sink.write(buff, 0, len)) {
+                        break;
+                    }
+                }
+            }
+        } else if (lob instanceof Clob) {
+            try (Reader reader = ((Clob) lob).getCharacterStream()) {
+                char[] buff = new char[Constants.IO_BUFFER_SIZE * 4];
+                for (int len; (len = reader.read(buff)) > 0;) {
+                    if (!sink.write(new String(buff, 0, len))) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private String openResult(Connection conn, String sql, int pageSize) throws SQLException {
+        if (StatementCache.isDDL(sql)) {
+            session.statementCache.clear();
+        }
+        int maxrows = getMaxrows();
+        String url = (String) session.get("url");
+        String resultKey = null;
+        long generation = 0;
+        if (url != null) {
+            if (!ResultCache.isQuery(sql)) {
+                ResultCache.instance.invalidate(url);
+            } else if ("true".equals(session.get("resultCache"))) {
+                generation = ResultCache.instance.getGeneration(url);
+                resultKey = ResultCache.getKey(url, (String) session.get("user"), conn.getSchema(), sql) + '\n'
+                        + maxrows;
+                String cached = ResultCache.instance.get(resultKey);
+                if (cached != null) {
+                    session.addCommand(sql);
+                    return cached;
+                }
+            }
+        }
+        Statement stat;
+        String cacheKey = null;
+        if (StatementCache.isCacheable(sql)) {
+            cacheKey = StatementCache.getKey(sql);
+            stat = session.statementCache.acquire(conn, sql, cacheKey);
+        } else {
+            stat = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        }
+        long time = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        boolean isResultSet;
+        session.executingStatement = stat;
+        if (asyncQuery != null) {
+            asyncQuery.statement = stat;
+        }
+        try {
+            stat.setMaxRows(maxrows);
+            stat.setFetchSize(ResultCursor.getPageSize(pageSize));
+            QueryGovernor.setQueryTimeout(session, stat);
+            if (cacheKey != null) {
+                isResultSet = ((PreparedStatement) stat).execute();
+            } else {
+                isResultSet = stat.execute(sql);
+            }
+        } catch (SQLException e) {
+            stat.close();
+            e = QueryGovernor.explain(session, e, time);
+            recordStatement(sql, System.nanoTime() - startNanos, 0, e);
+            throw e;
+        } finally {
+            session.executingStatement = null;
+            if (url != null && !ResultCache.isQuery(sql)) {
+                // again after the change, a concurrent query may have cached the old data
+                ResultCache.instance.invalidate(url);
+            }
+        }
+        session.addCommand(sql);
+        if (!isResultSet) {
+            long updateCount;
+            try {
+                updateCount = stat.getLargeUpdateCount();
+            } catch (UnsupportedOperationException e) {
+                updateCount = stat.getUpdateCount();
+            }
+            closeStatement(stat, cacheKey);
+            recordStatement(sql, System.nanoTime() - startNanos, updateCount, null);
+            time = System.currentTimeMillis() - time;
+            return session.i18n("text.result.updateCount") + ": " + updateCount + "<br />(" + time + " ms)";
+        }
+        ResultCursor cursor = new ResultCursor(session.nextResultId(), sql, stat, stat.getResultSet(), pageSize,
+                maxrows, cacheKey == null ? null : session.statementCache, cacheKey, session);
+        JsonObject json;
+        try {
+            json = cursor.nextPageAsJson(session);
+        } catch (SQLException e) {
+            cursor.close();
+            recordStatement(sql, System.nanoTime() - startNanos, 0, e);
+            throw e;
+        }
+        // the rows of further pages are added by fetchResult
+        recordStatement(sql, System.nanoTime() - startNanos, cursor.getRowCount(), null);
+        if (cursor.hasMore()) {
+            session.addCursor(cursor);
+        }
+        if (asyncQuery != null) {
+            asyncQuery.rowsFetched += cursor.getRowCount();
+        }
+        json.put("columnNames", new JsonArray(cursor.getColumnNames()));
+        json.put("sql", sql);
+        json.put("type", "result-table");
+        if (session.isH2()) {
+            // the page offers "Edit result" like the html result does
+            json.put("editable", true);
+        }
+        if (resultKey != null && !cursor.hasMore() && !json.containsKey("lobs")) {
+            // only complete results that fit into one page are cached,
+            // the LOB ids are only valid in this session
+            ResultCache.instance.put(resultKey, url, generation, json.copy());
+        }
+        return json.encode();
+    }
+
+    /**
+     * Record an executed statement in the statement statistics and, if it was
+     * slow, in the slow query log.
+     *
+     * @param sql the statement
+     * @param nanos the execution time
+     * @param rows the number of rows read or updated
+     * @param error the exception, or null
+     */
+    private void recordStatement(String sql, long nanos, long rows, Throwable error) {
+        StatementStats.instance.record(sql, nanos, rows, error != null);
+        SlowQueryLog.instance.log(session, sql, nanos, rows, error);
+    }
+
+    /**
+     * Close the statement, or give it back to the statement cache.
+     *
+     * @param stat the statement
+     * @param cacheKey the cache key, or null if the statement is not cached
+     */
+    private void closeStatement(Statement stat, String cacheKey) throws SQLException {
+        if (cacheKey == null) {
+            stat.close();
+        } else {
+            session.statementCache.release(cacheKey, (PreparedStatement) stat);
+        }
     }
 
     private String getResult(Connection conn, int id, String sql, boolean allowEdit, boolean forceEdit) {
+        statementStart = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        String statsSql = null;
+        long statsRows = 0;
+        Throwable error = null;
         try {
             sql = sql.trim();
             StringBuilder buff = new StringBuilder();
@@ -161,42 +706,79 @@ public class QueryService extends Service {
                 buff.append("<script type=\"text/javascript\">parent['h2menu'].location='tables.do?jsessionid=")
                         .append("").append("';</script>");
             }
+            if (StatementCache.isDDL(sql)) {
+                session.statementCache.clear();
+            }
+            String cacheKey = null;
             Statement stat;
             if (forceEdit || (allowEdit && session.isH2())) {
                 stat = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
             } else {
                 stat = conn.createStatement();
             }
-            ResultSet rs;
+            ResultSet rs = null;
             long time = System.currentTimeMillis();
             boolean metadata = false;
             Object generatedKeys = null;
             boolean edit = false;
             boolean list = false;
+            boolean html = htmlResults;
             if (JdbcUtils.isBuiltIn(sql, "@autocommit_true")) {
                 conn.setAutoCommit(true);
                 return session.i18n("text.result.autoCommitOn");
             } else if (JdbcUtils.isBuiltIn(sql, "@autocommit_false")) {
                 conn.setAutoCommit(false);
                 return session.i18n("text.result.autoCommitOff");
+            } else if (JdbcUtils.isBuiltIn(sql, "@result_cache_true")) {
+                session.put("resultCache", "true");
+                return "Result cache: on";
+            } else if (JdbcUtils.isBuiltIn(sql, "@result_cache_false")) {
+                session.remove("resultCache");
+                return "Result cache: off";
             } else if (JdbcUtils.isBuiltIn(sql, "@cancel")) {
                 stat = session.executingStatement;
-                if (stat != null) {
-                    stat.cancel();
+                int canceled = session.cancelAsyncQueries(asyncQuery);
+                if (stat != null || canceled > 0) {
+                    if (stat != null) {
+                        stat.cancel();
+                    }
                     buff.append("${text.result.statementWasCanceled}");
                 } else {
                     buff.append("${text.result.noRunningStatement}");
                 }
                 return buff.toString();
+            } else if (JdbcUtils.isBuiltIn(sql, "@edit_next") || JdbcUtils.isBuiltIn(sql, "@edit_previous")) {
+                stat.close();
+                EditWindow window = session.editWindow;
+                if (window == null) {
+                    return "?: " + sql;
+                }
+                session.editAccess = System.currentTimeMillis();
+                return window.readPage(conn,
+                        JdbcUtils.isBuiltIn(sql, "@edit_next") ? EditWindow.NEXT : EditWindow.PREVIOUS, session);
             } else if (JdbcUtils.isBuiltIn(sql, "@edit")) {
                 edit = true;
                 sql = StringUtils.trimSubstring(sql, "@edit".length());
                 session.put("resultSetSQL", sql);
+                // a query of one table with a primary key is edited page by page,
+                // without keeping a scrollable result set open
+                EditWindow window = EditWindow.open(conn, sql);
+                if (window != null) {
+                    stat.close();
+                    session.closeEdit();
+                    session.editWindow = window;
+                    session.editAccess = System.currentTimeMillis();
+                    return window.readPage(conn, EditWindow.FIRST, session);
+                }
             }
             if (JdbcUtils.isBuiltIn(sql, "@list")) {
                 list = true;
                 sql = StringUtils.trimSubstring(sql, "@list".length());
             }
+            if (JdbcUtils.isBuiltIn(sql, "@html")) {
+                html = true;
+                sql = StringUtils.trimSubstring(sql, "@html".length());
+            }
             if (JdbcUtils.isBuiltIn(sql, "@meta")) {
                 metadata = true;
                 sql = StringUtils.trimSubstring(sql, "@meta".length());
@@ -231,6 +813,20 @@ public class QueryService extends Service {
                 int maxrows = (int) Double.parseDouble(StringUtils.trimSubstring(sql, "@maxrows".length()));
                 session.put("maxrows", Integer.toString(maxrows));
                 return session.i18n("text.result.maxrowsSet") + " " + maxrows;
+            } else if (JdbcUtils.isBuiltIn(sql, "@query_timeout")) {
+                // @query_timeout [seconds], 0 for the global limit
+                String s = StringUtils.trimSubstring(sql, "@query_timeout".length());
+                if (!s.isEmpty()) {
+                    session.put("queryTimeout", Integer.toString(Integer.parseInt(s)));
+                }
+                return QueryGovernor.getInfoString(session);
+            } else if (JdbcUtils.isBuiltIn(sql, "@max_result_bytes")) {
+                // @max_result_bytes [bytes], 0 for the global limit
+                String s = StringUtils.trimSubstring(sql, "@max_result_bytes".length());
+                if (!s.isEmpty()) {
+                    session.put("maxResultBytes", Integer.toString(Integer.parseInt(s)));
+                }
+                return QueryGovernor.getInfoString(session);
             } else if (JdbcUtils.isBuiltIn(sql, "@parameter_meta")) {
                 sql = StringUtils.trimSubstring(sql, "@parameter_meta".length());
                 PreparedStatement prep = conn.prepareStatement(sql);
@@ -241,12 +837,28 @@ public class QueryService extends Service {
                 String[] p = JdbcUtils.split(sql);
                 return StringUtils.convertBytesToHex(SHA256.getKeyPasswordHash(p[0], p[1].toCharArray()));
             } else if (JdbcUtils.isBuiltIn(sql, "@prof_start")) {
-                if (profiler != null) {
-                    profiler.stopCollecting();
+                String s = StringUtils.trimSubstring(sql, "@prof_start".length());
+                SamplingProfiler.instance.start(s.isEmpty() ? 0 : Integer.parseInt(s));
+                return SamplingProfiler.instance.getInfoString();
+            } else if (JdbcUtils.isBuiltIn(sql, "@prof_export")) {
+                // @prof_export [seconds] [session | session id]
+                String[] p = StringUtils.arraySplit(StringUtils.trimSubstring(sql, "@prof_export".length()), ' ',
+                        true);
+                int seconds = p.length > 0 && !p[0].isEmpty() ? Integer.parseInt(p[0]) : 0;
+                String sessionId = null;
+                if (p.length > 1) {
+                    sessionId = "session".equals(p[1]) ? session.get("sessionId").toString() : p[1];
                 }
-                profiler = new Profiler();
-                profiler.startCollecting();
+                rs = SamplingProfiler.instance.getCollapsedStacksResultSet(seconds, sessionId, 0);
+            } else if (JdbcUtils.isBuiltIn(sql, "@stats_reset")) {
+                StatementStats.instance.reset();
                 return "Ok";
+            } else if (JdbcUtils.isBuiltIn(sql, "@stats")) {
+                // @stats [column] [limit]
+                String[] p = StringUtils.arraySplit(StringUtils.trimSubstring(sql, "@stats".length()), ' ', true);
+                String orderBy = p.length > 0 && !p[0].isEmpty() ? p[0] : null;
+                int limit = p.length > 1 ? Integer.parseInt(p[1]) : 0;
+                rs = StatementStats.instance.getResultSet(orderBy, limit);
             } else if (JdbcUtils.isBuiltIn(sql, "@sleep")) {
                 String s = StringUtils.trimSubstring(sql, "@sleep".length());
                 int sleep = 1;
@@ -269,15 +881,13 @@ public class QueryService extends Service {
                 buff.append(Connection.TRANSACTION_SERIALIZABLE).append(": serializable");
             }
             if (sql.startsWith("@")) {
-                rs = JdbcUtils.getMetaResultSet(conn, sql);
+                if (rs == null) {
+                    rs = JdbcUtils.getMetaResultSet(conn, sql);
+                }
                 if (rs == null && JdbcUtils.isBuiltIn(sql, "@prof_stop")) {
-                    if (profiler != null) {
-                        profiler.stopCollecting();
-                        SimpleResultSet simple = new SimpleResultSet();
-                        simple.addColumn("Top Stack Trace(s)", Types.VARCHAR, 0, 0);
-                        simple.addRow(profiler.getTop(3));
-                        rs = simple;
-                        profiler = null;
+                    if (SamplingProfiler.instance.isRunning()) {
+                        SamplingProfiler.instance.stop();
+                        rs = SamplingProfiler.instance.getCollapsedStacksResultSet(0, null, 3);
                     }
                 }
                 if (rs == null) {
@@ -285,11 +895,32 @@ public class QueryService extends Service {
                     return buff.toString();
                 }
             } else {
+                if (useStatementCache && generatedKeys == null && !edit
+                        && stat.getResultSetConcurrency() == ResultSet.CONCUR_READ_ONLY
+                        && StatementCache.isCacheable(sql)) {
+                    stat.close();
+                    cacheKey = StatementCache.getKey(sql);
+                    stat = session.statementCache.acquire(conn, sql, cacheKey);
+                }
                 int maxrows = getMaxrows();
                 stat.setMaxRows(maxrows);
+                QueryGovernor.setQueryTimeout(session, stat);
+                statementStart = System.currentTimeMillis();
+                startNanos = System.nanoTime();
+                statsSql = sql;
                 session.executingStatement = stat;
+                if (asyncQuery != null) {
+                    asyncQuery.statement = stat;
+                }
                 boolean isResultSet;
-                if (generatedKeys == null) {
+                if (cacheKey != null) {
+                    try {
+                        isResultSet = ((PreparedStatement) stat).execute();
+                    } catch (SQLException e) {
+                        stat.close();
+                        throw e;
+                    }
+                } else if (generatedKeys == null) {
                     isResultSet = stat.execute(sql);
                 } else if (generatedKeys instanceof Boolean) {
                     isResultSet = stat.execute(sql,
@@ -314,45 +945,52 @@ public class QueryService extends Service {
                         buff.append(session.i18n("text.result.updateCount")).append(": ").append(updateCount);
                         time = System.currentTimeMillis() - time;
                         buff.append("<br />(").append(time).append(" ms)");
-                        stat.close();
+                        statsRows = updateCount;
+                        closeStatement(stat, cacheKey);
                         return buff.toString();
                     }
                     rs = stat.getResultSet();
                 }
             }
             time = System.currentTimeMillis() - time;
-            buff.append(getResultSet(sql, rs, metadata, list, edit, time, allowEdit));
+            buff.append(getResultSet(sql, rs, metadata, list, edit, html, time, allowEdit));
+            statsRows = resultRows;
             // SQLWarning warning = stat.getWarnings();
             // if (warning != null) {
             // buff.append("<br />Warning:<br />").
             // append(getStackTrace(id, warning));
             // }
             if (!edit) {
-                stat.close();
+                closeStatement(stat, cacheKey);
             }
             return buff.toString();
         } catch (Throwable e) {
             // throwable: including OutOfMemoryError and so on
+            if (e instanceof SQLException) {
+                e = QueryGovernor.explain(session, (SQLException) e, statementStart);
+            }
+            error = e;
             return getStackTrace(id, e, session.isH2());
         } finally {
             session.executingStatement = null;
+            // after the change, so that a concurrent query can not cache the
+            // old data again; this includes the @ commands such as @loop
+            if (!ResultCache.isQuery(sql)) {
+                invalidateResultCache();
+            }
+            if (statsSql != null) {
+                recordStatement(statsSql, System.nanoTime() - startNanos, statsRows, error);
+            }
         }
     }
 
-    private String getResultSet(String sql, ResultSet rs, boolean metadata, boolean list, boolean edit, long time,
-            boolean allowEdit) throws SQLException {
+    private String getResultSet(String sql, ResultSet rs, boolean metadata, boolean list, boolean edit,
+            boolean html, long time, boolean allowEdit) throws SQLException {
         int maxrows = getMaxrows();
+        long maxBytes = QueryGovernor.getMaxResultBytes(session);
+        boolean truncated = false;
         time = System.currentTimeMillis() - time;
         StringBuilder buff = new StringBuilder();
-        if (edit) {
-            buff.append("<form id=\"editing\" name=\"editing\" method=\"post\" "
-                    + "action=\"editResult.do?jsessionid=${sessionId}\" " + "id=\"mainForm\" target=\"h2result\">"
-                    + "<input type=\"hidden\" name=\"op\" value=\"1\" />"
-                    + "<input type=\"hidden\" name=\"row\" value=\"\" />"
-                    + "<table class=\"resultSet\" cellspacing=\"0\" cellpadding=\"0\" id=\"editTable\">");
-        } else {
-            buff.append("<table class=\"resultSet\" cellspacing=\"0\" cellpadding=\"0\">");
-        }
         if (metadata) {
             SimpleResultSet r = new SimpleResultSet();
             r.addColumn("#", Types.INTEGER, 0, 0);
@@ -386,64 +1024,35 @@ public class QueryService extends Service {
             }
             rs = r;
         }
-        ResultSetMetaData meta = rs.getMetaData();
-        int columns = meta.getColumnCount();
-        int rows = 0;
+        // only one output format is rendered, the result-table page uses the json grid
+        ResultRenderer renderer;
         if (list) {
-            buff.append("<tr><th>Column</th><th>Data</th></tr><tr>");
-            while (rs.next()) {
-                if (maxrows > 0 && rows >= maxrows) {
-                    break;
-                }
-                rows++;
-                buff.append("<tr><td>Row #</td><td>").append(rows).append("</tr>");
-                for (int i = 0; i < columns; i++) {
-                    buff.append("<tr><td>").append(PageParser.escapeHtml(meta.getColumnLabel(i + 1)))
-                            .append("</td><td>").append(escapeData(rs, i + 1)).append("</td></tr>");
-                }
-            }
+            renderer = new ListRenderer(buff);
+        } else if (edit || html) {
+            renderer = new HtmlTableRenderer(buff, edit);
         } else {
-            buff.append("<tr>");
-            if (edit) {
-                buff.append("<th>${text.resultEdit.action}</th>");
+            renderer = new JsonGridRenderer(columnNames, rows);
+        }
+        renderer.session = session;
+        renderer.start(rs.getMetaData());
+        int rows = 0;
+        while (rs.next()) {
+            if (maxrows > 0 && rows >= maxrows) {
+                break;
             }
-            for (int i = 0; i < columns; i++) {
-                session.columnNames.add(meta.getColumnLabel(i + 1));
-                buff.append("<th>").append(PageParser.escapeHtml(meta.getColumnLabel(i + 1))).append("</th>");
+            if (maxBytes > 0 && renderer.getBytes() > maxBytes) {
+                truncated = true;
+                break;
             }
-            buff.append("</tr>");
-            while (rs.next()) {
-                if (maxrows > 0 && rows >= maxrows) {
-                    break;
-                }
-                rows++;
-                buff.append("<tr>");
-                if (edit) {
-                    buff.append("<td>").append("<img onclick=\"javascript:editRow(").append(rs.getRow())
-                            .append(",'${sessionId}', '${text.resultEdit.save}', " + "'${text.resultEdit.cancel}'")
-                            .append(")\" width=16 height=16 src=\"ico_write.gif\" "
-                                    + "onmouseover = \"this.className ='icon_hover'\" "
-                                    + "onmouseout = \"this.className ='icon'\" "
-                                    + "class=\"icon\" alt=\"${text.resultEdit.edit}\" "
-                                    + "title=\"${text.resultEdit.edit}\" border=\"1\"/>")
-                            .append("<img onclick=\"javascript:deleteRow(").append(rs.getRow())
-                            .append(",'${sessionId}', '${text.resultEdit.delete}', " + "'${text.resultEdit.cancel}'")
-                            .append(")\" width=16 height=16 src=\"ico_remove.gif\" "
-                                    + "onmouseover = \"this.className ='icon_hover'\" "
-                                    + "onmouseout = \"this.className ='icon'\" "
-                                    + "class=\"icon\" alt=\"${text.resultEdit.delete}\" "
-                                    + "title=\"${text.resultEdit.delete}\" border=\"1\" /></a>")
-                            .append("</td>");
-                }
-                ArrayList<String> row = new ArrayList<String>();
-                for (int i = 0; i < columns; i++) {
-                    row.add(escapeData(rs, i + 1));
-                    buff.append("<td>").append(escapeData(rs, i + 1)).append("</td>");
-                }
-                session.rows.add(row);
-                buff.append("</tr>");
+            rows++;
+            renderer.writeRow(rs, rows);
+            if (asyncQuery != null) {
+                asyncQuery.rowsFetched++;
             }
         }
+        if (renderer instanceof JsonGridRenderer) {
+            lobs.putAll(((JsonGridRenderer) renderer).takeLobs());
+        }
         boolean isUpdatable = false;
         try {
             isUpdatable = rs.getConcurrency() == ResultSet.CONCUR_UPDATABLE
@@ -453,130 +1062,54 @@ public class QueryService extends Service {
             // workaround for a JDBC-ODBC bridge problem
         }
         if (edit) {
-            ResultSet old = session.result;
-            if (old != null) {
-                old.close();
-            }
+            session.closeEdit();
             session.result = rs;
+            session.editAccess = System.currentTimeMillis();
         } else {
             rs.close();
         }
-        if (edit) {
-            buff.append("<tr><td>")
-                    .append("<img onclick=\"javascript:editRow(-1, "
-                            + "'${sessionId}', '${text.resultEdit.save}', '${text.resultEdit.cancel}'")
-                    .append(")\" width=16 height=16 src=\"ico_add.gif\" "
-                            + "onmouseover = \"this.className ='icon_hover'\" "
-                            + "onmouseout = \"this.className ='icon'\" "
-                            + "class=\"icon\" alt=\"${text.resultEdit.add}\" "
-                            + "title=\"${text.resultEdit.add}\" border=\"1\"/>")
-                    .append("</td>");
-            for (int i = 0; i < columns; i++) {
-                buff.append("<td></td>");
-            }
-            buff.append("</tr>");
-        }
-        buff.append("</table>");
-        if (edit) {
-            buff.append("</form>");
-        }
+        renderer.finish();
 
-        String queryInfo;
+        String rowsInfo;
         if (rows == 0) {
-            queryInfo = session.i18n("text.result.noRows");
+            rowsInfo = session.i18n("text.result.noRows");
             buff.append("(${text.result.noRows}");
         } else if (rows == 1) {
-            queryInfo = session.i18n("text.result.1row");
+            rowsInfo = session.i18n("text.result.1row");
             buff.append("(${text.result.1row}");
         } else {
-            queryInfo = rows + " " + session.i18n("text.result.rows");
+            rowsInfo = rows + " " + session.i18n("text.result.rows");
             buff.append('(').append(rows).append(" ${text.result.rows}");
         }
         buff.append(", ");
         time = System.currentTimeMillis() - time;
         buff.append(time).append(" ms)");
+        if (truncated) {
+            String message = QueryGovernor.getTruncatedMessage(maxBytes);
+            buff.append("<br />").append(message);
+            rowsInfo += ", " + message;
+        }
         if (!edit && isUpdatable && allowEdit) {
             buff.append("<br /><br />" + "<form name=\"editResult\" method=\"post\" "
                     + "action=\"query.do?jsessionid=${sessionId}\" target=\"h2result\">"
                     + "<input type=\"submit\" class=\"button\" " + "value=\"${text.resultEdit.editResult}\" />"
                     + "<input type=\"hidden\" name=\"sql\" value=\"@edit ").append(sql).append("\" /></form>");
         }
-        session.queryInfo = "(" + queryInfo + ", " + time + " ms)";
+        queryInfo = "(" + rowsInfo + ", " + time + " ms)";
+        resultRows = rows;
         return buff.toString();
     }
 
     private String executeLoop(Connection conn, int count, String sql) throws SQLException {
-        ArrayList<Integer> params = new ArrayList<>();
-        int idx = 0;
-        while (!stop) {
-            idx = sql.indexOf('?', idx);
-            if (idx < 0) {
-                break;
-            }
-            if (JdbcUtils.isBuiltIn(sql.substring(idx), "?/*rnd*/")) {
-                params.add(1);
-                sql = sql.substring(0, idx) + "?" + sql.substring(idx + "/*rnd*/".length() + 1);
-            } else {
-                params.add(0);
-            }
-            idx++;
-        }
-        boolean prepared;
-        Random random = new Random(1);
-        long time = System.currentTimeMillis();
-        if (JdbcUtils.isBuiltIn(sql, "@statement")) {
-            sql = StringUtils.trimSubstring(sql, "@statement".length());
-            prepared = false;
-            Statement stat = conn.createStatement();
-            for (int i = 0; !stop && i < count; i++) {
-                String s = sql;
-                for (Integer type : params) {
-                    idx = s.indexOf('?');
-                    if (type == 1) {
-                        s = s.substring(0, idx) + random.nextInt(count) + s.substring(idx + 1);
-                    } else {
-                        s = s.substring(0, idx) + i + s.substring(idx + 1);
-                    }
-                }
-                if (stat.execute(s)) {
-                    ResultSet rs = stat.getResultSet();
-                    while (!stop && rs.next()) {
-                        // maybe get the data as well
-                    }
-                    rs.close();
-                }
-            }
-        } else {
-            prepared = true;
-            PreparedStatement prep = conn.prepareStatement(sql);
-            for (int i = 0; !stop && i < count; i++) {
-                for (int j = 0; j < params.size(); j++) {
-                    Integer type = params.get(j);
-                    if (type == 1) {
-                        prep.setInt(j + 1, random.nextInt(count));
-                    } else {
-                        prep.setInt(j + 1, i);
-                    }
-                }
-                if (prep.execute()) {
-                    ResultSet rs = prep.getResultSet();
-                    while (!stop && rs.next()) {
-                        // maybe get the data as well
-                    }
-                    rs.close();
-                }
-            }
-        }
-        time = System.currentTimeMillis() - time;
-        StringBuilder builder = new StringBuilder().append(time).append(" ms: ").append(count).append(" * ")
-                .append(prepared ? "(Prepared) " : "(Statement) ").append('(');
-        for (int i = 0, size = params.size(); i < size; i++) {
-            if (i > 0) {
-                builder.append(", ");
+        QueryLoop loop = new QueryLoop(count, sql);
+        AsyncQuery q = asyncQuery;
+        try {
+            return loop.run(session, conn, () -> stop || q != null && q.isCanceled());
+        } finally {
+            if (q != null) {
+                q.rowsFetched += loop.getRows();
             }
-            builder.append(params.get(i) == 0 ? "i" : "rnd");
         }
-        return builder.append(") ").append(sql).toString();
     }
 
     private String getCommandHistoryString() {
@@ -616,68 +1149,180 @@ public class QueryService extends Service {
         return buff.toString();
     }
 
-    private static String escapeData(ResultSet rs, int columnIndex) throws SQLException {
-        if (DataType.isBinaryColumn(rs.getMetaData(), columnIndex)) {
-            byte[] d = rs.getBytes(columnIndex);
-            if (d == null) {
-                return "<i>null</i>";
-            } else if (d.length > 50_000) {
-                return "<div style='display: none'>=+</div>" + StringUtils.convertBytesToHex(d, 3) + "... (" + d.length
-                        + " ${text.result.bytes})";
-            }
-            return StringUtils.convertBytesToHex(d);
+    /**
+     * Change a row of the result opened with @edit. Only the changed row is
+     * read again and returned, the query is not executed again.
+     *
+     * @param jsessionid the session id
+     * @param row the row number, starting with 1, or -1 to insert a row
+     * @param op 1 to insert or update, 2 to delete, 3 to cancel
+     * @param value the new values as json, keyed by "r" + row + "c" + column
+     * @return the changed row as json
+     */
+    public String editResult(String jsessionid, Integer row, Integer op, String value) {
+        return forSession(jsessionid).editResult(row, op, value);
+    }
+
+    private String editResult(Integer row, Integer op, String value) {
+        if (session == null || session.editWindow == null && session.result == null) {
+            return getNoEditResult();
         }
-        String d = rs.getString(columnIndex);
-        if (d == null) {
-            return "<i>null</i>";
-        } else if (d.length() > 100_000) {
-            return "<div style='display: none'>=+</div>" + PageParser.escapeHtml(d.substring(0, 100)) + "... ("
-                    + d.length() + " ${text.result.characters})";
-        } else if (d.equals("null") || d.startsWith("= ") || d.startsWith("=+")) {
-            return "<div style='display: none'>= </div>" + PageParser.escapeHtml(d);
-        } else if (d.equals("")) {
-            // PageParser.escapeHtml replaces "" with a non-breaking space
-            return "";
+        JsonObject json;
+        try {
+            JsonObject attributes = new JsonObject(value);
+            json = editRow(row, op, i -> attributes.getString("r" + row + "c" + i));
+        } catch (Throwable e) {
+            json = new JsonObject();
+            json.put("row", row);
+            json.put("op", op);
+            json.put("error", formatAsError(e.getMessage()));
         }
-        return PageParser.escapeHtml(d);
+        invalidateResultCache();
+        return json.encode();
     }
 
-    public String editResult(String jsessionid, Integer row, Integer op, String value) {
-        JsonObject attributes = new JsonObject(value);
-        ResultSet rs = session.result;
-        String result = "", error = "";
+    /**
+     * Apply many changes to the rows of the result opened with @edit in one
+     * transaction. Either all changes are applied or none.
+     *
+     * @param jsessionid the session id
+     * @param changes a json array of objects with the row number, the
+     *            operation (see editResult) and the array of new values
+     * @return the changed rows as json, or the error
+     */
+    public String editRows(String jsessionid, String changes) {
+        return forSession(jsessionid).editRows(changes);
+    }
+
+    private String editRows(String changes) {
+        if (session == null || session.editWindow == null && session.result == null) {
+            return getNoEditResult();
+        }
+        JsonObject json = new JsonObject();
+        int index = 0;
         try {
-            if (op == 1) {
-                boolean insert = row < 0;
-                if (insert) {
-                    rs.moveToInsertRow();
-                } else {
-                    rs.absolute(row);
+            JsonArray list = new JsonArray(changes);
+            Connection conn = session.getConnection();
+            boolean autoCommit = conn.getAutoCommit();
+            Savepoint savepoint = null;
+            if (autoCommit) {
+                conn.setAutoCommit(false);
+            } else {
+                savepoint = conn.setSavepoint();
+            }
+            try {
+                JsonArray rows = new JsonArray();
+                for (; index < list.size(); index++) {
+                    JsonObject change = list.getJsonObject(index);
+                    JsonArray values = change.getJsonArray("values");
+                    rows.add(editRow(change.getInteger("row"), change.getInteger("op", 1), i -> {
+                        if (values == null || i > values.size()) {
+                            return null;
+                        }
+                        Object v = values.getValue(i - 1);
+                        return v == null ? "null" : v.toString();
+                    }));
                 }
-                for (int i = 0; i < rs.getMetaData().getColumnCount(); i++) {
-                    String x = attributes.getString("r" + row + "c" + (i + 1));
-                    unescapeData(x, rs, i + 1);
+                if (autoCommit) {
+                    conn.commit();
                 }
-                if (insert) {
-                    rs.insertRow();
+                json.put("rows", rows);
+            } catch (Throwable e) {
+                if (autoCommit) {
+                    conn.rollback();
                 } else {
-                    rs.updateRow();
+                    conn.rollback(savepoint);
+                }
+                throw e;
+            } finally {
+                if (autoCommit) {
+                    conn.setAutoCommit(true);
                 }
-            } else if (op == 2) {
-                rs.absolute(row);
-                rs.deleteRow();
-            } else if (op == 3) {
-                // cancel
             }
         } catch (Throwable e) {
-            result = "<br />" + getStackTrace(0, e, session.isH2());
-            error = formatAsError(e.getMessage());
-        }
-        String sql = "@edit " + (String) session.get("resultSetSQL");
-        Connection conn = session.getConnection();
-        result = error + getResult(conn, -1, sql, true, true) + result;
-        session.put("result", result);
-        return "result.jsp";
+            json.put("error", formatAsError("Change #" + (index + 1) + ": " + e.getMessage()));
+            // the result set may still show the changes that were rolled back
+            json.put("reload", true);
+        }
+        invalidateResultCache();
+        return json.encode();
+    }
+
+    private String getNoEditResult() {
+        JsonObject json = new JsonObject();
+        json.put("error", formatAsError("There is no result to edit, use @edit first"));
+        return json.encode();
+    }
+
+    private void invalidateResultCache() {
+        String url = (String) session.get("url");
+        if (url != null) {
+            ResultCache.instance.invalidate(url);
+        }
+    }
+
+    /**
+     * Apply a change to a row of the edit window, or of the updatable result
+     * set if the query can not be edited by primary key.
+     *
+     * @param row the row number, starting with 1, or -1 to insert a row
+     * @param op 1 to insert or update, 2 to delete, 3 to cancel
+     * @param values the new value by column index, or null to keep the value
+     * @return the changed row as json
+     */
+    private JsonObject editRow(int row, int op, IntFunction<String> values) throws SQLException {
+        session.editAccess = System.currentTimeMillis();
+        EditWindow window = session.editWindow;
+        if (window != null) {
+            return window.edit(session.getConnection(), row, op, values, session);
+        }
+        ResultSet rs = session.result;
+        if (rs == null) {
+            throw new SQLException("The edited result was released after inactivity, use @edit again");
+        }
+        JsonObject json = new JsonObject();
+        json.put("row", row);
+        json.put("op", op);
+        if (op == 1) {
+            boolean insert = row < 0;
+            if (insert) {
+                rs.moveToInsertRow();
+            } else {
+                rs.absolute(row);
+            }
+            int columns = rs.getMetaData().getColumnCount();
+            JsonArray entered = new JsonArray();
+            for (int i = 0; i < columns; i++) {
+                String x = values.apply(i + 1);
+                entered.add(x);
+                if (x != null) {
+                    unescapeData(x, rs, i + 1);
+                }
+            }
+            if (insert) {
+                rs.insertRow();
+                rs.moveToCurrentRow();
+                // the new row is not part of the result, so it can not be read again
+                json.put("values", entered);
+            } else {
+                rs.updateRow();
+                try {
+                    rs.refreshRow();
+                } catch (SQLFeatureNotSupportedException e) {
+                    // the updated values are shown
+                }
+                JsonGridRenderer renderer = new JsonGridRenderer();
+                renderer.session = session;
+                renderer.start(rs.getMetaData());
+                renderer.writeRow(rs, row);
+                json.put("cells", new JsonArray(renderer.takeRows().get(0)));
+            }
+        } else if (op == 2) {
+            rs.absolute(row);
+            rs.deleteRow();
+            json.put("deleted", true);
+        }
+        return json;
     }
 
     private void unescapeData(String x, ResultSet rs, int columnIndex) throws SQLException {
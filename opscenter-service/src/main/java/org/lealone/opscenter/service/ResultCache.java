@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The read-only query result cache shared by all sessions. Entries are keyed by
+ * the database URL, the user, the current schema and the SQL text, expire after
+ * a fixed time, and the least recently used entries are evicted when the cache
+ * is over its size budget. Any other statement on a database removes the
+ * entries of that database.
+ * <p>
+ * A query takes the generation of its database before it is executed. A result
+ * is not added if the entries of the database were removed in the meantime,
+ * because it may contain data that was changed before the removal.
+ * <p>
+ * The cache is opt-in: a session uses it after @result_cache_true.
+ */
+class ResultCache {
+
+    /**
+     * The time to live of an entry, in milliseconds.
+     */
+    private static final long TTL = Utils.getProperty("lealone.opscenter.resultCacheTtl", 10_000);
+
+    /**
+     * The maximum estimated memory used by all entries, in bytes.
+     */
+    private static final long MAX_BYTES = Utils.getProperty("lealone.opscenter.resultCacheBytes", 32 * 1024 * 1024);
+
+    static final ResultCache instance = new ResultCache();
+
+    private static class Entry {
+        final String url;
+        final String json;
+        final long bytes;
+        final long expireTime;
+
+        Entry(String url, String json, long expireTime) {
+            this.url = url;
+            this.json = json;
+            this.bytes = 64 + 2L * json.length();
+            this.expireTime = expireTime;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<String, Long> generations = new HashMap<>();
+    private long clears;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private ResultCache() {
+    }
+
+    /**
+     * Check if the statement only reads data, so that its result may be cached.
+     *
+     * @param sql the SQL statement
+     * @return true for queries
+     */
+    static boolean isQuery(String sql) {
+        String s = StringUtils.toUpperEnglish(sql.trim());
+        return (s.startsWith("SELECT") || s.startsWith("WITH") || s.startsWith("TABLE") || s.startsWith("VALUES")
+                || s.startsWith("SHOW") || s.startsWith("EXPLAIN")) && !s.contains("FOR UPDATE")
+                && !s.contains("NEXTVAL") && !s.contains("NEXT VALUE");
+    }
+
+    /**
+     * Get the key of a query. The current schema is included, because the
+     * same unqualified query reads other tables in another schema.
+     *
+     * @param url the database URL
+     * @param user the user name
+     * @param schema the current schema
+     * @param sql the SQL statement
+     * @return the key
+     */
+    static String getKey(String url, String user, String schema, String sql) {
+        return url + '\n' + user + '\n' + schema + '\n' + StatementCache.getKey(sql);
+    }
+
+    /**
+     * Get the generation of a database. It changes whenever the entries of
+     * the database are removed.
+     *
+     * @param url the database URL
+     * @return the generation
+     */
+    synchronized long getGeneration(String url) {
+        Long g = generations.get(url);
+        return clears + (g == null ? 0 : g);
+    }
+
+    /**
+     * Get a cached result.
+     *
+     * @param key the key
+     * @return the result as json, or null
+     */
+    synchronized String get(String key) {
+        Entry e = map.get(key);
+        if (e != null && e.expireTime < System.currentTimeMillis()) {
+            remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.json;
+    }
+
+    /**
+     * Add a complete result to the cache, unless the entries of the database
+     * were removed after the query was started.
+     *
+     * @param key the key
+     * @param url the database URL
+     * @param generation the generation of the database before the query
+     * @param json the result
+     */
+    void put(String key, String url, long generation, JsonObject json) {
+        if (MAX_BYTES <= 0) {
+            return;
+        }
+        json.put("cached", true);
+        Entry e = new Entry(url, json.encode(), System.currentTimeMillis() + TTL);
+        if (e.bytes > MAX_BYTES / 4) {
+            // a single large result would evict everything else
+            return;
+        }
+        synchronized (this) {
+            if (generation != getGeneration(url)) {
+                // the data may have changed while the query was running
+                return;
+            }
+            remove(key);
+            map.put(key, e);
+            bytes += e.bytes;
+            Iterator<Entry> it = map.values().iterator();
+            while (bytes > MAX_BYTES && it.hasNext()) {
+                bytes -= it.next().bytes;
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Remove all entries of a database, because data or schema may have changed.
+     *
+     * @param url the database URL
+     */
+    synchronized void invalidate(String url) {
+        generations.merge(url, 1L, Long::sum);
+        Iterator<Entry> it = map.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.url.equals(url)) {
+                bytes -= e.bytes;
+                it.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Remove all entries, after a tool that may have changed any database.
+     */
+    synchronized void clear() {
+        clears++;
+        invalidations += map.size();
+        map.clear();
+        bytes = 0;
+    }
+
+    private void remove(String key) {
+        Entry old = map.remove(key);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+    }
+
+    synchronized JsonObject getInfo() {
+        JsonObject json = new JsonObject();
+        long lookups = hits + misses;
+        json.put("entries", map.size());
+        json.put("bytes", bytes);
+        json.put("maxBytes", MAX_BYTES);
+        json.put("hits", hits);
+        json.put("misses", misses);
+        json.put("hitRate", lookups == 0 ? "-" : (hits * 100 / lookups) + "%");
+        json.put("evictions", evictions);
+        json.put("invalidations", invalidations);
+        return json;
+    }
+}
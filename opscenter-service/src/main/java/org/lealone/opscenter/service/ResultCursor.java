@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.h2.util.Utils;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * A server side cursor over an open JDBC result set.
+ * Rows are read page by page, so the memory used only depends on the page size.
+ */
+class ResultCursor {
+
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 10_000;
+
+    /**
+     * The time after which a cursor that is not read any more is closed, in
+     * milliseconds.
+     */
+    static final long IDLE_TIMEOUT = Utils.getProperty("lealone.opscenter.cursorIdleTimeout", 300) * 1000L;
+
+    final int id;
+    final String sql;
+    private final Statement stat;
+    private final ResultSet rs;
+    private final int pageSize;
+    private final int maxRows;
+    private final long maxBytes;
+    private final StatementCache statementCache;
+    private final String cacheKey;
+    private final JsonGridRenderer renderer;
+    private final long startTime;
+    private long rowCount;
+    private volatile boolean hasMore = true;
+    private boolean closed;
+
+    /**
+     * The last time a page was fetched.
+     */
+    private volatile long lastAccess;
+
+    ResultCursor(int id, String sql, Statement stat, ResultSet rs, int pageSize, int maxRows,
+            StatementCache statementCache, String cacheKey, ServiceSession session) throws SQLException {
+        this.id = id;
+        this.sql = sql;
+        this.stat = stat;
+        this.rs = rs;
+        this.pageSize = getPageSize(pageSize);
+        this.maxRows = maxRows;
+        this.maxBytes = QueryGovernor.getMaxResultBytes(session);
+        this.statementCache = statementCache;
+        this.cacheKey = cacheKey;
+        this.startTime = System.currentTimeMillis();
+        this.lastAccess = startTime;
+        renderer = new JsonGridRenderer();
+        renderer.session = session;
+        renderer.start(rs.getMetaData());
+    }
+
+    static int getPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Check if no page was fetched for longer than the idle timeout.
+     *
+     * @param now the current time
+     * @return true if the cursor is idle
+     */
+    boolean isIdle(long now) {
+        return lastAccess + IDLE_TIMEOUT < now;
+    }
+
+    boolean hasMore() {
+        return hasMore;
+    }
+
+    long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Read the next page of rows. The cursor is closed as soon as the last row
+     * was read. A page ends early if its rows use more memory than the result
+     * memory limit of the session.
+     *
+     * @return the rows of the page
+     */
+    synchronized ArrayList<ArrayList<String>> nextPage() throws SQLException {
+        lastAccess = System.currentTimeMillis();
+        renderer.resetBytes();
+        for (int i = 0; hasMore && i < pageSize; i++) {
+            if (i > 0 && maxBytes > 0 && renderer.getBytes() > maxBytes) {
+                break;
+            }
+            if ((maxRows > 0 && rowCount >= maxRows) || !rs.next()) {
+                close();
+                break;
+            }
+            renderer.writeRow(rs, (int) ++rowCount);
+        }
+        return renderer.takeRows();
+    }
+
+    /**
+     * Read the next page and encode it together with the cursor state.
+     *
+     * @param session the session, used for the i18n text
+     * @return the json object
+     */
+    synchronized JsonObject nextPageAsJson(ServiceSession session) throws SQLException {
+        JsonObject json = new JsonObject();
+        json.put("resultId", id);
+        json.put("rows", new JsonArray(nextPage()));
+        HashMap<String, Object> lobs = renderer.takeLobs();
+        if (!lobs.isEmpty()) {
+            json.put("lobs", new JsonObject(lobs));
+        }
+        json.put("hasMore", hasMore);
+        json.put("rowCount", rowCount);
+        String rowsInfo;
+        if (rowCount == 0) {
+            rowsInfo = session.i18n("text.result.noRows");
+        } else if (rowCount == 1) {
+            rowsInfo = session.i18n("text.result.1row");
+        } else {
+            rowsInfo = rowCount + " " + session.i18n("text.result.rows");
+        }
+        long time = System.currentTimeMillis() - startTime;
+        json.put("queryInfo", "(" + rowsInfo + (hasMore ? "+" : "") + ", " + time + " ms)");
+        return json;
+    }
+
+    ArrayList<String> getColumnNames() {
+        return renderer.getColumnNames();
+    }
+
+    /**
+     * Close the result set, and close the statement or give it back to the
+     * statement cache.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        hasMore = false;
+        try {
+            rs.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        if (statementCache != null) {
+            statementCache.release(cacheKey, (PreparedStatement) stat);
+            return;
+        }
+        try {
+            stat.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.zip.GZIPOutputStream;
+
+import org.h2.tools.Csv;
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+import org.h2.value.DataType;
+
+/**
+ * Exports the result of a query as CSV or JSON Lines. The rows are read with a
+ * forward-only result set and written to the sink in chunks of a fixed size,
+ * so the memory used does not depend on the number of rows.
+ */
+class ResultExporter {
+
+    /**
+     * The JDBC fetch size of the exported result set.
+     */
+    private static final int FETCH_SIZE = Utils.getProperty("lealone.opscenter.exportFetchSize", 1000);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int STRING = 0, LITERAL = 1, BINARY = 2, BOOLEAN = 3;
+
+    static final String CSV = "csv";
+    static final String JSON_LINES = "jsonl";
+
+    private ResultExporter() {
+    }
+
+    /**
+     * Get the content type of an export.
+     *
+     * @param format csv or jsonl
+     * @param gzip whether the export is compressed
+     * @return the content type
+     */
+    static String getContentType(String format, boolean gzip) {
+        if (gzip) {
+            return "application/gzip";
+        }
+        return JSON_LINES.equals(format) ? "application/x-ndjson; charset=utf-8" : "text/csv; charset=utf-8";
+    }
+
+    /**
+     * Execute a query and write the result to the sink.
+     *
+     * @param conn the connection
+     * @param sql the query
+     * @param format csv or jsonl
+     * @param gzip whether to compress the export
+     * @param sink the target
+     * @return the number of rows
+     */
+    static long export(Connection conn, String sql, String format, boolean gzip, ResultSink sink)
+            throws SQLException, IOException {
+        try (Statement stat = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stat.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = stat.executeQuery(sql)) {
+                OutputStream out = new SinkOutputStream(sink);
+                if (gzip) {
+                    out = new GZIPOutputStream(out, CHUNK_SIZE);
+                }
+                Writer writer = new OutputStreamWriter(new BufferedOutputStream(out, CHUNK_SIZE),
+                        StandardCharsets.UTF_8);
+                if (JSON_LINES.equals(format)) {
+                    long rows = writeJsonLines(writer, rs);
+                    writer.close();
+                    return rows;
+                }
+                Csv csv = new Csv();
+                csv.setLineSeparator("\n");
+                // Csv.write closes the writer
+                return csv.write(writer, rs);
+            }
+        }
+    }
+
+    private static long writeJsonLines(Writer writer, ResultSet rs) throws SQLException, IOException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int columns = meta.getColumnCount();
+        String[] names = new String[columns];
+        int[] kinds = new int[columns];
+        for (int i = 0; i < columns; i++) {
+            StringBuilder buff = new StringBuilder();
+            appendJsonString(buff, meta.getColumnLabel(i + 1));
+            names[i] = buff.append(':').toString();
+            kinds[i] = getKind(meta, i + 1);
+        }
+        StringBuilder buff = new StringBuilder();
+        long rows = 0;
+        while (rs.next()) {
+            buff.setLength(0);
+            buff.append('{');
+            for (int i = 0; i < columns; i++) {
+                if (i > 0) {
+                    buff.append(',');
+                }
+                buff.append(names[i]);
+                if (kinds[i] == BINARY) {
+                    byte[] b = rs.getBytes(i + 1);
+                    if (b == null) {
+                        buff.append("null");
+                    } else {
+                        buff.append('"').append(StringUtils.convertBytesToHex(b)).append('"');
+                    }
+                    continue;
+                } else if (kinds[i] == BOOLEAN) {
+                    boolean b = rs.getBoolean(i + 1);
+                    buff.append(rs.wasNull() ? "null" : b ? "true" : "false");
+                    continue;
+                }
+                String s = rs.getString(i + 1);
+                if (s == null) {
+                    buff.append("null");
+                } else if (kinds[i] == LITERAL) {
+                    buff.append(s);
+                } else {
+                    appendJsonString(buff, s);
+                }
+            }
+            buff.append("}\n");
+            writer.append(buff);
+            rows++;
+        }
+        return rows;
+    }
+
+    private static int getKind(ResultSetMetaData meta, int column) throws SQLException {
+        if (DataType.isBinaryColumn(meta, column)) {
+            return BINARY;
+        }
+        switch (meta.getColumnType(column)) {
+        case Types.BOOLEAN:
+        case Types.BIT:
+            return BOOLEAN;
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            return LITERAL;
+        default:
+            // REAL and DOUBLE may be NaN or Infinity, which are no json numbers
+            return STRING;
+        }
+    }
+
+    private static void appendJsonString(StringBuilder buff, String s) {
+        buff.append('"');
+        for (int i = 0, length = s.length(); i < length; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                buff.append("\\\"");
+                break;
+            case '\\':
+                buff.append("\\\\");
+                break;
+            case '\n':
+                buff.append("\\n");
+                break;
+            case '\r':
+                buff.append("\\r");
+                break;
+            case '\t':
+                buff.append("\\t");
+                break;
+            default:
+                if (c < ' ') {
+                    buff.append(String.format("\\u%04x", (int) c));
+                } else {
+                    buff.append(c);
+                }
+            }
+        }
+        buff.append('"');
+    }
+
+    /**
+     * Forwards the bytes to a result sink. Fails when the client has gone away,
+     * so that the export stops.
+     */
+    private static class SinkOutputStream extends OutputStream {
+
+        private final ResultSink sink;
+
+        SinkOutputStream(ResultSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0 && !sink.write(b, off, len)) {
+                throw new IOException("The client has closed the connection");
+            }
+        }
+    }
+}
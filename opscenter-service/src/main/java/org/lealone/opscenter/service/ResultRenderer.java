@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.h2.message.DbException;
+import org.h2.server.web.PageParser;
+import org.h2.util.IOUtils;
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+import org.h2.value.DataType;
+
+/**
+ * Renders a result set into exactly one output format.
+ * Each cell is read and escaped only once.
+ * <p>
+ * Of BLOB and CLOB cells, only a bounded preview is read. If the value is
+ * larger, the LOB is registered in the session, so that the full value can be
+ * read later with QueryService.streamLob.
+ */
+abstract class ResultRenderer {
+
+    /**
+     * The number of bytes of a BLOB preview.
+     */
+    private static final int PREVIEW_BYTES = Utils.getProperty("lealone.opscenter.lobPreviewBytes", 1024);
+
+    /**
+     * The number of characters of a CLOB preview.
+     */
+    private static final int PREVIEW_CHARS = Utils.getProperty("lealone.opscenter.lobPreviewChars", 2000);
+
+    protected int columns;
+    protected String[] columnLabels;
+    private boolean[] binary;
+    private boolean[] lob;
+
+    /**
+     * The session the large LOBs are registered in, or null.
+     */
+    ServiceSession session;
+
+    /**
+     * The id of the LOB registered by the last getCell call, or 0.
+     */
+    protected int lobId;
+
+    /**
+     * The id of the first LOB of the current page, or -1.
+     */
+    private int pageFirstLobId = -1;
+
+    private long bytes;
+
+    /**
+     * Start rendering a result.
+     *
+     * @param meta the result set meta data
+     */
+    void start(ResultSetMetaData meta) throws SQLException {
+        columns = meta.getColumnCount();
+        columnLabels = new String[columns];
+        binary = new boolean[columns];
+        lob = new boolean[columns];
+        for (int i = 0; i < columns; i++) {
+            columnLabels[i] = meta.getColumnLabel(i + 1);
+            binary[i] = DataType.isBinaryColumn(meta, i + 1);
+            int type = meta.getColumnType(i + 1);
+            lob[i] = type == Types.BLOB || type == Types.CLOB || type == Types.NCLOB;
+        }
+        writeHeader();
+    }
+
+    protected abstract void writeHeader();
+
+    /**
+     * Render the current row of the result set.
+     *
+     * @param rs the result set
+     * @param rowNumber the row number, starting with 1
+     */
+    abstract void writeRow(ResultSet rs, int rowNumber) throws SQLException;
+
+    /**
+     * Finish rendering, after the last row.
+     */
+    void finish() {
+        // nothing to do
+    }
+
+    /**
+     * Read and escape a cell of the current row.
+     *
+     * @param rs the result set
+     * @param columnIndex the column index, starting with 1
+     * @return the escaped value
+     */
+    protected String getCell(ResultSet rs, int columnIndex) throws SQLException {
+        lobId = 0;
+        int i = columnIndex - 1;
+        String s = lob[i] ? getLobCell(rs, columnIndex, binary[i]) : escapeData(rs, columnIndex, binary[i]);
+        // the string object and its characters
+        bytes += 40 + 2L * s.length();
+        return s;
+    }
+
+    /**
+     * Get the estimated memory of the cells read since the last reset.
+     *
+     * @return the number of bytes
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Start a new page: reset the memory estimate, and allow the LOBs of the
+     * previous pages to be freed.
+     */
+    void resetBytes() {
+        pageFirstLobId = -1;
+        bytes = 0;
+    }
+
+    /**
+     * Whether the cells are html, so that a link to the full LOB can be added.
+     *
+     * @return true for html
+     */
+    protected boolean isHtml() {
+        return true;
+    }
+
+    private String getLobCell(ResultSet rs, int columnIndex, boolean binary) throws SQLException {
+        try {
+            if (binary) {
+                Blob blob = rs.getBlob(columnIndex);
+                if (blob == null) {
+                    return "<i>null</i>";
+                }
+                long length = blob.length();
+                byte[] preview = new byte[(int) Math.min(length, PREVIEW_BYTES)];
+                try (InputStream in = blob.getBinaryStream()) {
+                    IOUtils.readFully(in, preview, preview.length);
+                }
+                if (length <= PREVIEW_BYTES) {
+                    blob.free();
+                    return StringUtils.convertBytesToHex(preview);
+                }
+                return "<div style='display: none'>=+</div>" + StringUtils.convertBytesToHex(preview) + "... ("
+                        + length + " ${text.result.bytes})" + registerLob(blob);
+            }
+            Clob clob = rs.getClob(columnIndex);
+            if (clob == null) {
+                return "<i>null</i>";
+            }
+            long length = clob.length();
+            char[] preview = new char[(int) Math.min(length, PREVIEW_CHARS)];
+            int len;
+            try (Reader reader = clob.getCharacterStream()) {
+                len = IOUtils.readFully(reader, preview, preview.length);
+            }
+            if (length <= PREVIEW_CHARS) {
+                clob.free();
+                return escapeString(new String(preview, 0, len));
+            }
+            return "<div style='display: none'>=+</div>" + PageParser.escapeHtml(new String(preview, 0, len))
+                    + "... (" + length + " ${text.result.characters})" + registerLob(clob);
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, null);
+        }
+    }
+
+    private String registerLob(Object lob) throws SQLException {
+        if (session == null) {
+            ServiceSession.freeLob(lob);
+            return "";
+        }
+        lobId = session.addLob(lob, pageFirstLobId);
+        if (pageFirstLobId < 0) {
+            pageFirstLobId = lobId;
+        }
+        if (!isHtml()) {
+            return "";
+        }
+        return " <a href=\"/service/query_service/stream_lob?jsessionid=" + session.get("sessionId") + "&lobId="
+                + lobId + "\" target=\"_blank\">&gt;&gt;</a>";
+    }
+
+    static String escapeData(ResultSet rs, int columnIndex, boolean binary) throws SQLException {
+        if (binary) {
+            byte[] d = rs.getBytes(columnIndex);
+            if (d == null) {
+                return "<i>null</i>";
+            } else if (d.length > 50_000) {
+                return "<div style='display: none'>=+</div>" + StringUtils.convertBytesToHex(d, 3) + "... ("
+                        + d.length + " ${text.result.bytes})";
+            }
+            return StringUtils.convertBytesToHex(d);
+        }
+        String d = rs.getString(columnIndex);
+        if (d == null) {
+            return "<i>null</i>";
+        }
+        return escapeString(d);
+    }
+
+    private static String escapeString(String d) {
+        if (d.length() > 100_000) {
+            return "<div style='display: none'>=+</div>" + PageParser.escapeHtml(d.substring(0, 100)) + "... ("
+                    + d.length() + " ${text.result.characters})";
+        } else if (d.equals("null") || d.startsWith("= ") || d.startsWith("=+")) {
+            return "<div style='display: none'>= </div>" + PageParser.escapeHtml(d);
+        } else if (d.equals("")) {
+            // PageParser.escapeHtml replaces "" with a non-breaking space
+            return "";
+        }
+        return PageParser.escapeHtml(d);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+/**
+ * The target of a streamed result.
+ */
+public interface ResultSink {
+
+    /**
+     * Write a chunk of the result. This method may block until the client
+     * has read the previous chunks.
+     *
+     * @param chunk the chunk
+     * @return false if the client has gone away and the execution should stop
+     */
+    boolean write(String chunk);
+
+    /**
+     * Write a chunk of binary data.
+     *
+     * @param data the data
+     * @param offset the offset in the data
+     * @param length the number of bytes
+     * @return false if the client has gone away and the execution should stop
+     */
+    boolean write(byte[] data, int offset, int length);
+}
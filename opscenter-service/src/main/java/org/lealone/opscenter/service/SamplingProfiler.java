@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.h2.tools.SimpleResultSet;
+import org.h2.util.Utils;
+
+/**
+ * The server wide sampling profiler. A daemon thread takes the stack traces of
+ * all runnable threads at a fixed interval and keeps them in a bounded ring
+ * buffer, so that the hot spots of the last minutes can be exported as
+ * collapsed stacks (one line per stack, frames separated by ';', followed by
+ * the number of samples), the input format of the flame graph tools.
+ * <p>
+ * Threads that execute a statement for a session are tagged with the session
+ * id, so that the samples of one session can be exported on their own.
+ */
+class SamplingProfiler implements Runnable {
+
+    /**
+     * The default sampling interval, in milliseconds.
+     */
+    private static final int DEFAULT_INTERVAL = Utils.getProperty("lealone.opscenter.profilerInterval", 20);
+
+    /**
+     * The number of samples kept in the ring buffer.
+     */
+    private static final int CAPACITY = Utils.getProperty("lealone.opscenter.profilerSamples", 50_000);
+
+    /**
+     * The maximum number of frames of a sample.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Frames of threads that wait for I/O or for work, not using CPU.
+     */
+    private static final String[] IDLE_FRAMES = { "java.lang.Object.wait", "java.lang.Thread.sleep",
+            "sun.misc.Unsafe.park", "jdk.internal.misc.Unsafe.park", "sun.nio.ch.EPoll", "sun.nio.ch.KQueue",
+            "sun.nio.ch.WindowsSelectorImpl", "sun.nio.ch.Net.accept", "sun.nio.ch.ServerSocketChannelImpl.accept",
+            "java.net.PlainSocketImpl.socketAccept", "java.net.SocketInputStream.socketRead0",
+            "java.lang.ref.Reference.waitForReferencePendingList", "java.lang.Thread.dumpThreads",
+            "java.lang.Thread.getAllStackTraces" };
+
+    static final SamplingProfiler instance = new SamplingProfiler();
+
+    private final long[] times = new long[CAPACITY];
+    private final String[] stacks = new String[CAPACITY];
+    private final String[] sessions = new String[CAPACITY];
+    private int next;
+    private int size;
+    private long total;
+
+    private final ConcurrentHashMap<Long, String> threadSessions = new ConcurrentHashMap<>();
+
+    private volatile Thread thread;
+    private volatile int interval = DEFAULT_INTERVAL;
+    private long startTime;
+
+    private SamplingProfiler() {
+    }
+
+    /**
+     * Start sampling, or change the interval if already started.
+     *
+     * @param interval the sampling interval in milliseconds, or 0 for the
+     *            default
+     */
+    synchronized void start(int interval) {
+        this.interval = interval > 0 ? interval : DEFAULT_INTERVAL;
+        if (thread == null) {
+            startTime = System.currentTimeMillis();
+            Thread t = new Thread(this, "OpsCenterProfiler");
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+        }
+    }
+
+    /**
+     * Stop sampling. The samples in the ring buffer can still be exported.
+     */
+    synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Tag the current thread with a session while it executes statements.
+     *
+     * @param sessionId the session id
+     */
+    void enterSession(Object sessionId) {
+        if (thread != null && sessionId != null) {
+            threadSessions.put(Thread.currentThread().getId(), sessionId.toString());
+        }
+    }
+
+    /**
+     * Remove the session tag of the current thread.
+     */
+    void exitSession() {
+        if (!threadSessions.isEmpty()) {
+            threadSessions.remove(Thread.currentThread().getId());
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        while (thread == self) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            sample(self);
+        }
+    }
+
+    private void sample(Thread self) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+            Thread t = e.getKey();
+            StackTraceElement[] trace = e.getValue();
+            if (t == self || t.getState() != Thread.State.RUNNABLE || trace.length == 0 || isIdle(trace[0])) {
+                continue;
+            }
+            String stack = collapse(trace);
+            String sessionId = threadSessions.get(t.getId());
+            synchronized (this) {
+                times[next] = now;
+                stacks[next] = stack;
+                sessions[next] = sessionId;
+                next = (next + 1) % CAPACITY;
+                if (size < CAPACITY) {
+                    size++;
+                }
+                total++;
+            }
+        }
+    }
+
+    private static boolean isIdle(StackTraceElement top) {
+        String frame = top.getClassName() + "." + top.getMethodName();
+        for (String idle : IDLE_FRAMES) {
+            if (frame.startsWith(idle)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Convert a stack trace to the collapsed format, the root frame first.
+     */
+    private static String collapse(StackTraceElement[] trace) {
+        StringBuilder buff = new StringBuilder();
+        int depth = Math.min(trace.length, MAX_DEPTH);
+        for (int i = depth - 1; i >= 0; i--) {
+            if (buff.length() > 0) {
+                buff.append(';');
+            }
+            buff.append(trace[i].getClassName()).append('.').append(trace[i].getMethodName());
+        }
+        return buff.toString();
+    }
+
+    /**
+     * Count the samples by stack.
+     *
+     * @param seconds only include the samples of the last seconds, or 0 for
+     *            all samples
+     * @param sessionId only include the samples of this session, or null
+     * @return the number of samples of each stack
+     */
+    synchronized HashMap<String, Integer> getCollapsedStacks(int seconds, String sessionId) {
+        HashMap<String, Integer> counts = new HashMap<>();
+        long from = seconds > 0 ? System.currentTimeMillis() - seconds * 1000L : 0;
+        for (int i = 0; i < size; i++) {
+            int idx = (next - 1 - i + CAPACITY) % CAPACITY;
+            if (times[idx] < from) {
+                break;
+            }
+            if (sessionId == null || sessionId.equals(sessions[idx])) {
+                counts.merge(stacks[idx], 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Get the collapsed stacks as a result set, the most frequent first.
+     *
+     * @param seconds the time window, or 0 for all samples
+     * @param sessionId the session, or null for all threads
+     * @param limit the maximum number of rows, or 0 for no limit
+     * @return the result set
+     */
+    SimpleResultSet getCollapsedStacksResultSet(int seconds, String sessionId, int limit) {
+        ArrayList<Map.Entry<String, Integer>> list = new ArrayList<>(getCollapsedStacks(seconds, sessionId)
+                .entrySet());
+        list.sort((a, b) -> b.getValue() - a.getValue());
+        SimpleResultSet rs = new SimpleResultSet();
+        rs.addColumn("STACK", Types.VARCHAR, 0, 0);
+        rs.addColumn("SAMPLES", Types.INTEGER, 0, 0);
+        for (int i = 0, n = list.size(); i < n && (limit <= 0 || i < limit); i++) {
+            Map.Entry<String, Integer> e = list.get(i);
+            rs.addRow(e.getKey(), e.getValue());
+        }
+        return rs;
+    }
+
+    synchronized String getInfoString() {
+        return (thread != null ? "running, " + interval + " ms" : "stopped") + ", " + size + "/" + CAPACITY
+                + " samples, " + total + " total" + (startTime > 0 ? ", since " + new Timestamp(startTime) : "");
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.h2.server.web.PageParser;
+import org.h2.util.JdbcUtils;
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+/**
+ * Executes a script in batch mode (@batch). Runs of consecutive DML statements
+ * of the same shape are executed as one JDBC batch, with the literals replaced
+ * by parameters. Other statements are executed one by one, and their results
+ * are not shown. In auto-commit mode, the changes are committed in chunks.
+ * <p>
+ * Usage: @batch [size=n] [commit=n] followed by the statements.
+ */
+class ScriptBatcher {
+
+    private static final int DEFAULT_BATCH_SIZE = Utils.getProperty("lealone.opscenter.batchSize", 1000);
+    private static final int DEFAULT_COMMIT_SIZE = Utils.getProperty("lealone.opscenter.batchCommitSize", 10_000);
+
+    /**
+     * The maximum number of rows of the summary table.
+     */
+    private static final int MAX_SUMMARY_ROWS = 200;
+
+    private final ServiceSession session;
+    private final AsyncQuery asyncQuery;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int commitSize = DEFAULT_COMMIT_SIZE;
+
+    private Connection conn;
+    private boolean commitChunks;
+    private int uncommitted;
+    private int commits;
+    private int committed;
+    private int executed;
+    private long updated;
+    private int batches;
+
+    private final StringBuilder summary = new StringBuilder();
+    private int summaryRows;
+
+    // the pending batch
+    private String shape;
+    private int shapeStart;
+    private final ArrayList<String> pendingSql = new ArrayList<>();
+    private final ArrayList<List<Object>> pendingValues = new ArrayList<>();
+    private String preparedShape;
+    private PreparedStatement prep;
+
+    // the pending run of single statements
+    private int singleStart;
+    private int singles;
+    private long singleUpdated;
+    private long singleTime;
+
+    ScriptBatcher(ServiceSession session, AsyncQuery asyncQuery) {
+        this.session = session;
+        this.asyncQuery = asyncQuery;
+    }
+
+    /**
+     * Parse the options after @batch.
+     *
+     * @param s the text after @batch
+     * @return the rest of the text, the first statement of the script
+     */
+    String parseOptions(String s) {
+        while (true) {
+            int idx = s.indexOf(' ');
+            String token = idx < 0 ? s : s.substring(0, idx);
+            if (token.startsWith("size=")) {
+                batchSize = Math.max(1, Integer.parseInt(token.substring("size=".length())));
+            } else if (token.startsWith("commit=")) {
+                commitSize = Math.max(1, Integer.parseInt(token.substring("commit=".length())));
+            } else {
+                return s;
+            }
+            s = idx < 0 ? "" : StringUtils.trimSubstring(s, idx);
+        }
+    }
+
+    /**
+     * Execute the statements.
+     *
+     * @param conn the connection
+     * @param list the statements
+     * @return the summary as html
+     */
+    String execute(Connection conn, List<String> list) throws SQLException {
+        this.conn = conn;
+        commitChunks = conn.getAutoCommit();
+        int limit = commitChunks ? Math.min(batchSize, commitSize) : batchSize;
+        long time = System.nanoTime();
+        String url = (String) session.get("url");
+        if (url != null) {
+            ResultCache.instance.invalidate(url);
+        }
+        try {
+            if (commitChunks) {
+                conn.setAutoCommit(false);
+            }
+            for (int index = 0; index < list.size(); index++) {
+                if (asyncQuery != null && asyncQuery.isCanceled()) {
+                    break;
+                }
+                String sql = list.get(index).trim();
+                if (sql.isEmpty()) {
+                    continue;
+                }
+                ArrayList<Object> values = new ArrayList<>();
+                String s = isDML(sql) ? SqlLiterals.parameterize(sql, values) : null;
+                if (s == null) {
+                    flushBatch();
+                    executeSingle(index, sql);
+                    continue;
+                }
+                flushSingles();
+                if (!s.equals(shape) || pendingSql.size() >= limit) {
+                    flushBatch();
+                    shape = s;
+                    shapeStart = index;
+                }
+                pendingSql.add(sql);
+                pendingValues.add(values);
+            }
+            flushBatch();
+            flushSingles();
+            if (commitChunks) {
+                commit();
+            }
+        } catch (Throwable e) {
+            // roll back before the finally block turns autocommit on, which
+            // would commit the open chunk
+            if (commitChunks) {
+                conn.rollback();
+            }
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            summary.append("<tr><td colspan=\"5\">").append(PageParser.escapeHtml(message))
+                    .append("</td></tr>");
+        } finally {
+            JdbcUtils.closeSilently(prep);
+            session.executingStatement = null;
+            if (commitChunks) {
+                conn.setAutoCommit(true);
+            }
+            if (url != null) {
+                // again after the changes, a concurrent query may have cached the old data
+                ResultCache.instance.invalidate(url);
+            }
+        }
+        time = (System.nanoTime() - time) / 1_000_000;
+        StringBuilder buff = new StringBuilder();
+        buff.append(executed).append(" of ").append(list.size()).append(" statements executed in ").append(batches)
+                .append(" batches, ").append(updated).append(" rows updated, ").append(time).append(" ms");
+        if (commitChunks) {
+            buff.append(", ").append(committed).append(" statements committed in ").append(commits)
+                    .append(" commits");
+        } else {
+            buff.append(", not committed (auto commit is off)");
+        }
+        buff.append("<br /><table class=\"resultSet\" cellspacing=\"0\" cellpadding=\"0\">");
+        buff.append("<tr><th>#</th><th>Statement</th><th>Count</th><th>Updated</th><th>Time (ms)</th></tr>");
+        buff.append(summary);
+        if (summaryRows > MAX_SUMMARY_ROWS) {
+            buff.append("<tr><td colspan=\"5\">").append(summaryRows - MAX_SUMMARY_ROWS)
+                    .append(" more rows</td></tr>");
+        }
+        buff.append("</table>");
+        return buff.toString();
+    }
+
+    private static boolean isDML(String sql) {
+        String s = StringUtils.toUpperEnglish(sql.substring(0, Math.min(sql.length(), 8)));
+        return s.startsWith("INSERT") || s.startsWith("UPDATE") || s.startsWith("DELETE")
+                || s.startsWith("MERGE");
+    }
+
+    private void executeSingle(int index, String sql) throws SQLException {
+        if (singles == 0) {
+            singleStart = index;
+        }
+        if (StatementCache.isDDL(sql)) {
+            session.statementCache.clear();
+        }
+        long t = System.nanoTime();
+        try (Statement stat = conn.createStatement()) {
+            QueryGovernor.setQueryTimeout(session, stat);
+            session.executingStatement = stat;
+            if (!stat.execute(sql)) {
+                singleUpdated += Math.max(0, stat.getUpdateCount());
+            }
+        } catch (SQLException e) {
+            throw new SQLException("Statement #" + (index + 1) + ": " + e.getMessage(), e.getSQLState(),
+                    e.getErrorCode(), e);
+        }
+        singleTime += System.nanoTime() - t;
+        singles++;
+        executed++;
+        uncommitted++;
+        if (uncommitted >= commitSize) {
+            flushSingles();
+            commitIfNeeded();
+        }
+    }
+
+    private void flushSingles() throws SQLException {
+        if (singles == 0) {
+            return;
+        }
+        addSummary(singleStart, singles == 1 ? "(1 statement)" : "(" + singles + " statements)", singles,
+                singleUpdated, singleTime);
+        updated += singleUpdated;
+        singles = 0;
+        singleUpdated = 0;
+        singleTime = 0;
+        commitIfNeeded();
+    }
+
+    private void flushBatch() throws SQLException {
+        int count = pendingSql.size();
+        if (count == 0) {
+            return;
+        }
+        long t = System.nanoTime();
+        long u = 0;
+        if (!shape.equals(preparedShape)) {
+            JdbcUtils.closeSilently(prep);
+            preparedShape = null;
+            try {
+                prep = conn.prepareStatement(shape);
+                QueryGovernor.setQueryTimeout(session, prep);
+                preparedShape = shape;
+            } catch (SQLException e) {
+                // the parameters may not be allowed at some places
+                prep = null;
+            }
+        }
+        if (prep == null) {
+            for (int i = 0; i < count; i++) {
+                executeSingle(shapeStart + i, pendingSql.get(i));
+            }
+            clearBatch();
+            flushSingles();
+            return;
+        }
+        session.executingStatement = prep;
+        if (asyncQuery != null) {
+            asyncQuery.statement = prep;
+        }
+        try {
+            for (List<Object> values : pendingValues) {
+                for (int i = 0, size = values.size(); i < size; i++) {
+                    Object v = values.get(i);
+                    if (v instanceof String) {
+                        prep.setString(i + 1, (String) v);
+                    } else if (v instanceof Long) {
+                        prep.setLong(i + 1, (Long) v);
+                    } else {
+                        prep.setBigDecimal(i + 1, (BigDecimal) v);
+                    }
+                }
+                prep.addBatch();
+            }
+            for (int c : prep.executeBatch()) {
+                u += Math.max(0, c);
+            }
+        } catch (SQLException e) {
+            prep.clearBatch();
+            throw new SQLException("Statements #" + (shapeStart + 1) + " to #" + (shapeStart + count) + ": "
+                    + e.getMessage(), e.getSQLState(), e.getErrorCode(), e);
+        }
+        batches++;
+        executed += count;
+        updated += u;
+        uncommitted += count;
+        addSummary(shapeStart, shape, count, u, System.nanoTime() - t);
+        clearBatch();
+        commitIfNeeded();
+    }
+
+    private void clearBatch() {
+        pendingSql.clear();
+        pendingValues.clear();
+        shape = null;
+    }
+
+    private void commitIfNeeded() throws SQLException {
+        if (commitChunks && uncommitted >= commitSize) {
+            commit();
+        }
+    }
+
+    private void commit() throws SQLException {
+        if (uncommitted > 0) {
+            conn.commit();
+            commits++;
+            committed += uncommitted;
+            uncommitted = 0;
+        }
+    }
+
+    private void addSummary(int index, String sql, int count, long u, long nanos) {
+        if (++summaryRows > MAX_SUMMARY_ROWS) {
+            return;
+        }
+        if (sql.length() > 200) {
+            sql = sql.substring(0, 200) + "...";
+        }
+        summary.append("<tr><td>").append(index + 1).append("</td><td>").append(PageParser.escapeHtml(sql))
+                .append("</td><td>").append(count).append("</td><td>").append(u).append("</td><td>")
+                .append(nanos / 1_000_000).append("</td></tr>");
+    }
+}
@@ -22,7 +22,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 
 import org.h2.engine.Constants;
@@ -30,7 +29,6 @@ import org.h2.engine.SysProperties;
 import org.h2.message.DbException;
 import org.h2.security.SHA256;
 import org.h2.server.ShutdownHandler;
-import org.h2.store.fs.FileUtils;
 import org.h2.util.MathUtils;
 import org.h2.util.SortedProperties;
 import org.h2.util.StringUtils;
@@ -77,18 +75,25 @@ public class ServiceConfig {
     private byte[] adminPassword;
     private final HashMap<String, ConnectionInfo> connInfoMap = new HashMap<>();
 
-    private long lastTimeoutCheck;
-    private final HashMap<String, ServiceSession> sessions = new HashMap<>();
+    private final SessionRegistry sessions = new SessionRegistry(SESSION_TIMEOUT);
     private final HashSet<String> languages = new HashSet<>();
     private String startDateTime;
     private ShutdownHandler shutdownHandler;
     private String key;
     private boolean trace;
     private TranslateThread translateThread;
-    private boolean allowChunked = false;
+    private boolean allowChunked = Utils.getProperty("lealone.opscenter.allowChunked", true);
     private String serverPropertiesDir = Constants.SERVER_PROPERTIES_DIR;
     // null means the history is not allowed to be stored
     private String commandHistoryString;
+    private CommandHistoryStore commandHistoryStore;
+    private ConfigStore configStore;
+
+    /**
+     * The webPort, webAllowOthers and webSSL values of the properties file,
+     * which may differ from the values in use, set on the command line.
+     */
+    private final Properties webSettings = new Properties();
 
     /**
      * Read the given file from the file system or from the resources.
@@ -119,17 +124,6 @@ public class ServiceConfig {
      * @return the web session or null
      */
     ServiceSession getSession(String sessionId) {
-        long now = System.currentTimeMillis();
-        if (lastTimeoutCheck + SESSION_TIMEOUT < now) {
-            for (String id : new ArrayList<>(sessions.keySet())) {
-                ServiceSession session = sessions.get(id);
-                if (session.lastAccess + SESSION_TIMEOUT < now) {
-                    trace("timeout for " + id);
-                    sessions.remove(id);
-                }
-            }
-            lastTimeoutCheck = now;
-        }
         ServiceSession session = sessions.get(sessionId);
         if (session != null) {
             session.lastAccess = System.currentTimeMillis();
@@ -144,18 +138,17 @@ public class ServiceConfig {
      * @return the web session object
      */
     ServiceSession createNewSession(String hostAddr) {
-        String newId;
-        do {
-            newId = generateSessionId();
-        } while (sessions.get(newId) != null);
         ServiceSession session = new ServiceSession(this);
         session.lastAccess = System.currentTimeMillis();
-        session.put("sessionId", newId);
         session.put("ip", hostAddr);
         session.put("language", DEFAULT_LANGUAGE);
         session.put("frame-border", "0");
         session.put("frameset-border", "4");
-        sessions.put(newId, session);
+        String newId;
+        do {
+            newId = generateSessionId();
+            session.put("sessionId", newId);
+        } while (!sessions.add(newId, session));
         // always read the english translation,
         // so that untranslated text appears at least in english
         readTranslations(session, DEFAULT_LANGUAGE);
@@ -205,8 +198,13 @@ public class ServiceConfig {
         port = SortedProperties.getIntProperty(prop, "webPort", Constants.DEFAULT_HTTP_PORT);
         ssl = SortedProperties.getBooleanProperty(prop, "webSSL", false);
         allowOthers = SortedProperties.getBooleanProperty(prop, "webAllowOthers", false);
+        setWebSettings(prop);
         setAdminPassword(SortedProperties.getStringProperty(prop, "webAdminPassword", null));
         commandHistoryString = prop.getProperty(COMMAND_HISTORY);
+        loadSettings(prop);
+        configStore = new ConfigStore("null".equals(serverPropertiesDir) ? null
+                : serverPropertiesDir + "/" + Constants.SERVER_PROPERTIES_NAME, this::getProperties);
+        initCommandHistory();
         for (int i = 0; args != null && i < args.length; i++) {
             String a = args[i];
             if (Tool.isOption(a, "-webPort")) {
@@ -246,6 +244,9 @@ public class ServiceConfig {
         if (allowOthers) {
             key = null;
         }
+        if (Utils.getProperty("lealone.opscenter.profiler", false)) {
+            SamplingProfiler.instance.start(0);
+        }
     }
 
     /**
@@ -304,33 +305,23 @@ public class ServiceConfig {
      * @param language the language
      */
     void readTranslations(ServiceSession session, String language) {
-        Properties text = new Properties();
-        try {
-            trace("translation: " + language);
-            byte[] trans = getFile("_text_" + language + ".prop");
-            trace("  " + new String(trans));
-            text = SortedProperties.fromLines(new String(trans, StandardCharsets.UTF_8));
-            // remove starting # (if not translated yet)
-            for (Entry<Object, Object> entry : text.entrySet()) {
-                String value = (String) entry.getValue();
-                if (value.startsWith("#")) {
-                    entry.setValue(value.substring(1));
-                }
-            }
-        } catch (IOException e) {
-            DbException.traceThrowable(e);
-        }
-        session.put("text", new HashMap<>(text));
+        trace("translation: " + language);
+        // shared by all sessions of the language
+        session.put("text", TranslationBundles.instance.get(language).text);
     }
 
     ArrayList<HashMap<String, Object>> getSessions() {
         ArrayList<HashMap<String, Object>> list = new ArrayList<>(sessions.size());
-        for (ServiceSession s : sessions.values()) {
+        for (ServiceSession s : sessions.getAll()) {
             list.add(s.getInfo());
         }
         return list;
     }
 
+    HashMap<String, Object> getSessionRegistryInfo() {
+        return sessions.getInfo();
+    }
+
     void setAllowOthers(boolean b) {
         if (b) {
             key = null;
@@ -372,12 +363,35 @@ public class ServiceConfig {
         }
     }
 
+    /**
+     * Open the command history journal. The history of older versions, which
+     * was stored in the properties file, is moved to the journal.
+     */
+    private void initCommandHistory() {
+        commandHistoryStore = new CommandHistoryStore("null".equals(serverPropertiesDir) ? null
+                : serverPropertiesDir);
+        if (commandHistoryString != null && !commandHistoryString.isEmpty()) {
+            if (!commandHistoryStore.exists()) {
+                for (String sql : parseCommandHistoryString(commandHistoryString)) {
+                    commandHistoryStore.append(sql);
+                }
+                commandHistoryStore.flush();
+            }
+            // from now on the property only tells that the history is stored
+            commandHistoryString = "";
+            saveProperties(null);
+        }
+    }
+
     public ArrayList<String> getCommandHistoryList() {
-        ArrayList<String> result = new ArrayList<>();
-        if (commandHistoryString == null) {
-            return result;
+        if (commandHistoryString == null || commandHistoryStore == null) {
+            return new ArrayList<>();
         }
+        return commandHistoryStore.getList();
+    }
 
+    private static ArrayList<String> parseCommandHistoryString(String commandHistoryString) {
+        ArrayList<String> result = new ArrayList<>();
         // Split the commandHistoryString on non-escaped semicolons
         // and unescape it.
         StringBuilder sb = new StringBuilder();
@@ -400,20 +414,15 @@ public class ServiceConfig {
     }
 
     /**
-     * Save the command history to the properties file.
+     * Save a command of the command history. The command is written to the
+     * journal in the background.
      *
-     * @param commandHistory the history
+     * @param sql the command
      */
-    public void saveCommandHistoryList(ArrayList<String> commandHistory) {
-        StringBuilder sb = new StringBuilder();
-        for (String s : commandHistory) {
-            if (sb.length() > 0) {
-                sb.append(';');
-            }
-            sb.append(s.replace("\\", "\\\\").replace(";", "\\;"));
+    void saveCommand(String sql) {
+        if (commandHistoryString != null && commandHistoryStore != null) {
+            commandHistoryStore.append(sql);
         }
-        commandHistoryString = sb.toString();
-        saveProperties(null);
     }
 
     /**
@@ -431,7 +440,7 @@ public class ServiceConfig {
      *
      * @param info the connection information
      */
-    void updateSetting(ConnectionInfo info) {
+    synchronized void updateSetting(ConnectionInfo info) {
         connInfoMap.put(info.name, info);
         info.lastAccess = ticker++;
     }
@@ -441,7 +450,7 @@ public class ServiceConfig {
      *
      * @param name the setting to remove
      */
-    void removeSetting(String name) {
+    synchronized void removeSetting(String name) {
         connInfoMap.remove(name);
     }
 
@@ -477,71 +486,81 @@ public class ServiceConfig {
      * @return the list
      */
     synchronized ArrayList<ConnectionInfo> getSettings() {
-        ArrayList<ConnectionInfo> settings = new ArrayList<>();
-        if (connInfoMap.isEmpty()) {
-            Properties prop = loadProperties();
-            if (prop.isEmpty()) {
-                for (String gen : GENERIC) {
-                    ConnectionInfo info = new ConnectionInfo(gen);
-                    settings.add(info);
-                    updateSetting(info);
-                }
-            } else {
-                for (int i = 0;; i++) {
-                    String data = prop.getProperty(Integer.toString(i));
-                    if (data == null) {
-                        break;
-                    }
-                    ConnectionInfo info = new ConnectionInfo(data);
-                    settings.add(info);
-                    updateSetting(info);
-                }
-            }
-        } else {
-            settings.addAll(connInfoMap.values());
-        }
+        ArrayList<ConnectionInfo> settings = new ArrayList<>(connInfoMap.values());
         Collections.sort(settings);
         return settings;
     }
 
     /**
-     * Save the settings to the properties file.
-     *
-     * @param prop null or the properties webPort, webAllowOthers, and webSSL
+     * Read the connection settings of the properties file, or use the generic
+     * settings if there is no properties file.
      */
-    synchronized void saveProperties(Properties prop) {
-        try {
-            if (prop == null) {
-                Properties old = loadProperties();
-                prop = new SortedProperties();
-                prop.setProperty("webPort", Integer.toString(SortedProperties.getIntProperty(old, "webPort", port)));
-                prop.setProperty("webAllowOthers",
-                        Boolean.toString(SortedProperties.getBooleanProperty(old, "webAllowOthers", allowOthers)));
-                prop.setProperty("webSSL", Boolean.toString(SortedProperties.getBooleanProperty(old, "webSSL", ssl)));
-                if (adminPassword != null) {
-                    prop.setProperty("webAdminPassword", StringUtils.convertBytesToHex(adminPassword));
-                }
-                if (commandHistoryString != null) {
-                    prop.setProperty(COMMAND_HISTORY, commandHistoryString);
-                }
+    private synchronized void loadSettings(Properties prop) {
+        if (prop.isEmpty()) {
+            for (String gen : GENERIC) {
+                updateSetting(new ConnectionInfo(gen));
             }
-            ArrayList<ConnectionInfo> settings = getSettings();
-            int len = settings.size();
-            for (int i = 0; i < len; i++) {
-                ConnectionInfo info = settings.get(i);
-                if (info != null) {
-                    prop.setProperty(Integer.toString(len - i - 1), info.getString());
-                }
+            return;
+        }
+        for (int i = 0;; i++) {
+            String data = prop.getProperty(Integer.toString(i));
+            if (data == null) {
+                break;
+            }
+            updateSetting(new ConnectionInfo(data));
+        }
+    }
+
+    private synchronized void setWebSettings(Properties prop) {
+        for (String key : new String[] { "webPort", "webAllowOthers", "webSSL" }) {
+            String value = prop.getProperty(key);
+            if (value != null) {
+                webSettings.setProperty(key, value);
             }
-            if (!"null".equals(serverPropertiesDir)) {
-                OutputStream out = FileUtils
-                        .newOutputStream(serverPropertiesDir + "/" + Constants.SERVER_PROPERTIES_NAME, false);
-                prop.store(out, "H2 Server Properties");
-                out.close();
+        }
+    }
+
+    /**
+     * Save the settings to the properties file. The file is written in the
+     * background, see ConfigStore.
+     *
+     * @param prop null or the new properties webPort, webAllowOthers, and
+     *            webSSL
+     */
+    void saveProperties(Properties prop) {
+        if (prop != null) {
+            setWebSettings(prop);
+        }
+        if (configStore != null) {
+            configStore.markDirty();
+        }
+    }
+
+    /**
+     * Get a copy of the configuration, as it is stored in the properties file.
+     *
+     * @return the properties
+     */
+    private synchronized Properties getProperties() {
+        Properties prop = new SortedProperties();
+        prop.setProperty("webPort", webSettings.getProperty("webPort", Integer.toString(port)));
+        prop.setProperty("webAllowOthers", webSettings.getProperty("webAllowOthers", Boolean.toString(allowOthers)));
+        prop.setProperty("webSSL", webSettings.getProperty("webSSL", Boolean.toString(ssl)));
+        if (adminPassword != null) {
+            prop.setProperty("webAdminPassword", StringUtils.convertBytesToHex(adminPassword));
+        }
+        if (commandHistoryString != null) {
+            prop.setProperty(COMMAND_HISTORY, commandHistoryString);
+        }
+        ArrayList<ConnectionInfo> settings = getSettings();
+        int len = settings.size();
+        for (int i = 0; i < len; i++) {
+            ConnectionInfo info = settings.get(i);
+            if (info != null) {
+                prop.setProperty(Integer.toString(len - i - 1), info.getString());
             }
-        } catch (Exception e) {
-            DbException.traceThrowable(e);
         }
+        return prop;
     }
 
     /**
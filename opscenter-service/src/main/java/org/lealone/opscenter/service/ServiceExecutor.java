@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.util.Utils;
+
+/**
+ * Executes the service calls off the http event loop. The calls run on
+ * virtual threads if the JDK has them, otherwise on a pool of worker threads.
+ * <p>
+ * Each service has its own concurrency limit. Calls above the limit wait in
+ * the queue of the service, and are rejected if the queue is full, so that a
+ * service with many slow calls (for example query_service) can not take all
+ * threads from the others.
+ */
+public class ServiceExecutor {
+
+    /**
+     * The number of worker threads if there are no virtual threads.
+     */
+    private static final int THREADS = Utils.getProperty("lealone.opscenter.serviceThreads", 32);
+
+    /**
+     * Whether to use virtual threads if the JDK has them.
+     */
+    private static final boolean VIRTUAL_THREADS = Utils.getProperty("lealone.opscenter.virtualThreads", true);
+
+    /**
+     * The default number of calls of one service that run at the same time.
+     * Can be set for a service with lealone.opscenter.serviceConcurrency.name.
+     */
+    private static final int CONCURRENCY = Utils.getProperty("lealone.opscenter.serviceConcurrency", 16);
+
+    /**
+     * The maximum number of waiting calls of one service.
+     */
+    private static final int QUEUE_SIZE = Utils.getProperty("lealone.opscenter.serviceQueueSize", 200);
+
+    public static final ServiceExecutor instance = new ServiceExecutor();
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final ConcurrentHashMap<String, ServiceQueue> queues = new ConcurrentHashMap<>();
+
+    private ServiceExecutor() {
+        ExecutorService e = VIRTUAL_THREADS ? newVirtualThreadExecutor() : null;
+        virtual = e != null;
+        if (e == null) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "OpsCenterService-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            e = pool;
+        }
+        executor = e;
+    }
+
+    /**
+     * Get Executors.newVirtualThreadPerTaskExecutor() of JDK 21 and newer.
+     *
+     * @return the executor, or null if the JDK does not have virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Execute a service call, or queue it if the service already executes the
+     * maximum number of calls.
+     *
+     * @param serviceName the service
+     * @param task the call
+     * @return false if the call was rejected because the queue of the service
+     *         is full
+     */
+    public boolean execute(String serviceName, Runnable task) {
+        return queues.computeIfAbsent(serviceName, ServiceQueue::new).offer(task);
+    }
+
+    /**
+     * Get the metrics of the services.
+     *
+     * @return one map per service
+     */
+    ArrayList<HashMap<String, Object>> getInfo() {
+        ArrayList<HashMap<String, Object>> list = new ArrayList<>(queues.size());
+        for (ServiceQueue q : queues.values()) {
+            list.add(q.getInfo());
+        }
+        list.sort((a, b) -> ((String) a.get("name")).compareTo((String) b.get("name")));
+        return list;
+    }
+
+    String getInfoString() {
+        return virtual ? "virtual threads" : THREADS + " worker threads";
+    }
+
+    /**
+     * The calls of one service.
+     */
+    private class ServiceQueue {
+
+        final String name;
+        final int concurrency;
+        final ConcurrentLinkedQueue<Call> waiting = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        volatile int maxQueued;
+
+        ServiceQueue(String name) {
+            this.name = name;
+            this.concurrency = Math.max(1, Utils.getProperty("lealone.opscenter.serviceConcurrency." + name,
+                    CONCURRENCY));
+        }
+
+        boolean offer(Runnable task) {
+            int n = queued.incrementAndGet();
+            if (n > QUEUE_SIZE) {
+                queued.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (n > maxQueued) {
+                maxQueued = n;
+            }
+            waiting.offer(new Call(task));
+            dispatch();
+            return true;
+        }
+
+        /**
+         * Start waiting calls while the service is below its limit.
+         */
+        private void dispatch() {
+            while (!waiting.isEmpty()) {
+                int a = active.get();
+                if (a >= concurrency) {
+                    // the call that is running now dispatches when it ends
+                    return;
+                }
+                if (!active.compareAndSet(a, a + 1)) {
+                    continue;
+                }
+                Call call = waiting.poll();
+                if (call == null) {
+                    active.decrementAndGet();
+                    continue;
+                }
+                queued.decrementAndGet();
+                waitNanos.addAndGet(System.nanoTime() - call.created);
+                executor.execute(() -> run(call));
+            }
+        }
+
+        private void run(Call call) {
+            try {
+                call.task.run();
+            } catch (Throwable t) {
+                failed.incrementAndGet();
+            } finally {
+                completed.incrementAndGet();
+                active.decrementAndGet();
+                dispatch();
+            }
+        }
+
+        HashMap<String, Object> getInfo() {
+            HashMap<String, Object> m = new HashMap<>();
+            long c = completed.get();
+            m.put("name", name);
+            m.put("active", active.get() + " / " + concurrency);
+            m.put("queued", queued.get() + " / " + QUEUE_SIZE);
+            m.put("maxQueued", maxQueued);
+            m.put("completed", c);
+            m.put("failed", failed.get());
+            m.put("rejected", rejected.get());
+            m.put("meanWaitMs", c == 0 ? 0 : waitNanos.get() / c / 1_000_000);
+            return m;
+        }
+    }
+
+    /**
+     * A waiting service call.
+     */
+    private static class Call {
+
+        final Runnable task;
+        final long created = System.nanoTime();
+
+        Call(Runnable task) {
+            this.task = task;
+        }
+    }
+}
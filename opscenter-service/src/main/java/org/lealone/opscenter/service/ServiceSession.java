@@ -5,14 +5,25 @@
  */
 package org.lealone.opscenter.service;
 
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.h2.message.DbException;
 import org.lealone.db.session.ServerSession;
@@ -23,17 +34,30 @@ import org.lealone.db.session.ServerSession;
  */
 class ServiceSession {
 
-    private static final int MAX_HISTORY = 1000;
+    private static final int MAX_CURSORS = 8;
+
+    private static final int MAX_LOBS = 64;
+
+    /**
+     * The maximum number of idle connections kept for @parallel.
+     */
+    static final int MAX_POOLED_CONNECTIONS = 16;
+
+    /**
+     * The last time this client sent a request, read by the session sweeper.
+     */
+    volatile long lastAccess;
 
     /**
-     * The last time this client sent a request.
+     * The estimated memory of this session in bytes, updated by the session
+     * sweeper.
      */
-    long lastAccess;
+    volatile long memory;
 
     /**
-     * The session attribute map.
+     * The session attribute map. The session sweeper reads it too.
      */
-    final HashMap<String, Object> map = new HashMap<>();
+    final ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<>();
 
     /**
      * The current locale.
@@ -46,22 +70,73 @@ class ServiceSession {
     Statement executingStatement;
 
     /**
-     * The current updatable result set.
+     * The current updatable result set, used for @edit if the query can not
+     * be edited by primary key.
      */
-    ResultSet result;
+    volatile ResultSet result;
+
+    /**
+     * The current @edit page, or null.
+     */
+    volatile EditWindow editWindow;
+
+    /**
+     * The last time the edit window or the updatable result set was used.
+     */
+    long editAccess;
 
     private final ServiceConfig server;
 
-    private final ArrayList<String> commandHistory;
+    /**
+     * The command history, the oldest command first.
+     */
+    private final LinkedHashSet<String> commandHistory;
+    private volatile String lastCommand;
+
+    /**
+     * The cached prepared statements of the connection.
+     */
+    final StatementCache statementCache = new StatementCache();
+
+    /**
+     * The open result cursors, keyed by result id, in the order they were opened.
+     */
+    private final LinkedHashMap<Integer, ResultCursor> cursors = new LinkedHashMap<>();
+    private int nextResultId;
+
+    /**
+     * The LOBs of which only a preview was shown, keyed by LOB id, in the order
+     * they were registered.
+     */
+    private final LinkedHashMap<Integer, Object> lobs = new LinkedHashMap<>();
+    private int nextLobId;
 
-    final ArrayList<String> columnNames = new ArrayList<>();
-    final ArrayList<ArrayList<String>> rows = new ArrayList<>();
-    String queryInfo;
+    /**
+     * The asynchronous queries submitted by this session, keyed by query id.
+     */
+    private final HashMap<Integer, AsyncQuery> asyncQueries = new HashMap<>();
+    private int nextQueryId;
+
+    /**
+     * The submitted queries that wait until the query of this session that
+     * is executed is finished, because they use the same connection.
+     */
+    private final ArrayDeque<AsyncQuery> waitingQueries = new ArrayDeque<>();
+    private AsyncQuery runningQuery;
 
     final ArrayList<TableInfo> tableList = new ArrayList<>();
     final ArrayList<NodeInfo> nodeList = new ArrayList<>();
 
-    private Connection conn;
+    private volatile Connection conn;
+
+    /**
+     * Whether the connection was closed to free memory. It is opened again
+     * when it is used.
+     */
+    private volatile boolean connectionReleased;
+
+    private final ArrayDeque<Connection> pooledConnections = new ArrayDeque<>();
+    private Properties connectionProperties;
     private boolean shutdownServerOnDisconnect;
     private ServerSession serverSession;
 
@@ -70,7 +145,7 @@ class ServiceSession {
         // This must be stored in the session rather than in the server.
         // Otherwise, one client could allow
         // saving history for others (insecure).
-        this.commandHistory = server.getCommandHistoryList();
+        this.commandHistory = new LinkedHashSet<>(server.getCommandHistoryList());
     }
 
     void addTable(String name, String columns, int id) {
@@ -100,7 +175,11 @@ class ServiceSession {
      * @param value the new value
      */
     void put(String key, Object value) {
-        map.put(key, value);
+        if (value == null) {
+            map.remove(key);
+        } else {
+            map.put(key, value);
+        }
     }
 
     /**
@@ -120,7 +199,7 @@ class ServiceSession {
         if (key.startsWith("text."))
             key = key.substring(5);
         @SuppressWarnings("unchecked")
-        HashMap<String, Object> m = (HashMap<String, Object>) map.get("text");
+        Map<String, Object> m = (Map<String, Object>) map.get("text");
         return m.get(key).toString();
     }
 
@@ -141,7 +220,7 @@ class ServiceSession {
      * @return the SQL statement
      */
     String getCommand(int id) {
-        return commandHistory.get(id);
+        return getCommandHistory().get(id);
     }
 
     /**
@@ -157,26 +236,25 @@ class ServiceSession {
         if (sql.isEmpty()) {
             return;
         }
-        if (commandHistory.size() > MAX_HISTORY) {
-            commandHistory.remove(0);
-        }
-        int idx = commandHistory.indexOf(sql);
-        if (idx >= 0) {
-            commandHistory.remove(idx);
+        // the queries of a @parallel script are added from several threads
+        synchronized (commandHistory) {
+            CommandHistoryStore.add(commandHistory, sql);
         }
-        commandHistory.add(sql);
+        lastCommand = sql;
         if (server.isCommandHistoryAllowed()) {
-            server.saveCommandHistoryList(commandHistory);
+            server.saveCommand(sql);
         }
     }
 
     /**
      * Get the list of SQL statements in the history.
      *
-     * @return the commands
+     * @return the commands, the oldest first
      */
     ArrayList<String> getCommandHistory() {
-        return commandHistory;
+        synchronized (commandHistory) {
+            return new ArrayList<>(commandHistory);
+        }
     }
 
     /**
@@ -187,24 +265,331 @@ class ServiceSession {
     HashMap<String, Object> getInfo() {
         HashMap<String, Object> m = new HashMap<>();
         m.putAll(map);
+        // the translation and the last result are large, and not shown
+        m.remove("text");
+        m.remove("result");
         m.put("lastAccess", new Timestamp(lastAccess).toString());
+        m.put("memory", memory / 1024 + " KB");
         try {
-            m.put("url", conn == null ? "${text.admin.notConnected}" : conn.getMetaData().getURL());
-            m.put("user", conn == null ? "-" : conn.getMetaData().getUserName());
-            m.put("lastQuery", commandHistory.isEmpty() ? "" : commandHistory.get(0));
+            Connection c = conn;
+            m.put("url", c == null ? "${text.admin.notConnected}" : c.getMetaData().getURL());
+            m.put("user", c == null ? "-" : c.getMetaData().getUserName());
+            String last = lastCommand;
+            m.put("lastQuery", last == null ? "" : last);
             m.put("executing", executingStatement == null ? "${text.admin.no}" : "${text.admin.yes}");
+            m.put("statementCache", statementCache.getInfoString());
         } catch (SQLException e) {
             DbException.traceThrowable(e);
         }
         return m;
     }
 
+    /**
+     * Get the next result id.
+     *
+     * @return the result id
+     */
+    synchronized int nextResultId() {
+        return ++nextResultId;
+    }
+
+    /**
+     * Register an open cursor. If there are too many open cursors, the oldest
+     * one is closed.
+     *
+     * @param cursor the cursor
+     */
+    synchronized void addCursor(ResultCursor cursor) {
+        if (cursors.size() >= MAX_CURSORS) {
+            Iterator<ResultCursor> it = cursors.values().iterator();
+            it.next().close();
+            it.remove();
+        }
+        cursors.put(cursor.id, cursor);
+    }
+
+    synchronized ResultCursor getCursor(int resultId) {
+        return cursors.get(resultId);
+    }
+
+    /**
+     * Close and remove a cursor.
+     *
+     * @param resultId the result id
+     * @return true if the cursor was open
+     */
+    synchronized boolean closeCursor(int resultId) {
+        ResultCursor cursor = cursors.remove(resultId);
+        if (cursor != null) {
+            cursor.close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Close the cursors that were not read for some time.
+     *
+     * @param now the current time
+     */
+    synchronized void releaseIdleCursors(long now) {
+        for (Iterator<ResultCursor> it = cursors.values().iterator(); it.hasNext();) {
+            ResultCursor cursor = it.next();
+            if (cursor.isIdle(now)) {
+                cursor.close();
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void closeCursors() {
+        for (ResultCursor cursor : cursors.values()) {
+            cursor.close();
+        }
+        cursors.clear();
+    }
+
+    /**
+     * Register a Blob or Clob, so that it can be read later. If there are too
+     * many LOBs, the oldest ones are freed, but not the LOBs of the page that
+     * is rendered, which may have more LOBs than the limit.
+     *
+     * @param lob the LOB
+     * @param keepFrom the first LOB id of the page, or -1 if this is the first
+     *            LOB of the page
+     * @return the LOB id
+     */
+    synchronized int addLob(Object lob, int keepFrom) {
+        Iterator<Map.Entry<Integer, Object>> it = lobs.entrySet().iterator();
+        while (lobs.size() >= MAX_LOBS && it.hasNext()) {
+            Map.Entry<Integer, Object> e = it.next();
+            if (keepFrom >= 0 && e.getKey() >= keepFrom) {
+                break;
+            }
+            freeLob(e.getValue());
+            it.remove();
+        }
+        lobs.put(++nextLobId, lob);
+        return nextLobId;
+    }
+
+    synchronized Object getLob(int lobId) {
+        return lobs.get(lobId);
+    }
+
+    private synchronized void freeLobs() {
+        for (Object lob : lobs.values()) {
+            freeLob(lob);
+        }
+        lobs.clear();
+    }
+
+    /**
+     * Free a Blob or Clob, ignoring errors.
+     *
+     * @param lob the LOB
+     */
+    static void freeLob(Object lob) {
+        try {
+            if (lob instanceof Blob) {
+                ((Blob) lob).free();
+            } else if (lob instanceof Clob) {
+                ((Clob) lob).free();
+            }
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    synchronized AsyncQuery addAsyncQuery(String sql) {
+        AsyncQuery query = new AsyncQuery(++nextQueryId, this, sql);
+        asyncQueries.put(query.id, query);
+        return query;
+    }
+
+    /**
+     * Execute an asynchronous query with the worker pool, or after the query
+     * of this session that is executed now.
+     *
+     * @param query the query
+     * @throws java.util.concurrent.RejectedExecutionException if the queue of
+     *             the worker pool is full
+     */
+    synchronized void submitAsyncQuery(AsyncQuery query) {
+        if (runningQuery != null) {
+            waitingQueries.add(query);
+            return;
+        }
+        QueryExecutor.submit(query);
+        runningQuery = query;
+    }
+
+    /**
+     * Start the next waiting query, after a query was finished or removed from
+     * the worker pool.
+     *
+     * @param query the query
+     */
+    synchronized void asyncQueryFinished(AsyncQuery query) {
+        if (runningQuery != query) {
+            // canceled while it was waiting
+            waitingQueries.remove(query);
+            return;
+        }
+        runningQuery = null;
+        for (AsyncQuery next; (next = waitingQueries.poll()) != null;) {
+            if (next.isCanceled()) {
+                continue;
+            }
+            try {
+                QueryExecutor.submit(next);
+                runningQuery = next;
+                return;
+            } catch (RejectedExecutionException e) {
+                next.cancel();
+            }
+        }
+    }
+
+    synchronized AsyncQuery getAsyncQuery(int queryId) {
+        return asyncQueries.get(queryId);
+    }
+
+    synchronized AsyncQuery removeAsyncQuery(int queryId) {
+        AsyncQuery query = asyncQueries.remove(queryId);
+        if (query != null) {
+            query.deleteSpillFile();
+        }
+        return query;
+    }
+
+    private synchronized void removeAsyncQueries() {
+        for (AsyncQuery query : asyncQueries.values()) {
+            query.deleteSpillFile();
+        }
+        asyncQueries.clear();
+    }
+
+    /**
+     * Cancel all asynchronous queries that are not finished yet.
+     *
+     * @param except the query that should not be canceled, or null
+     * @return the number of canceled queries
+     */
+    synchronized int cancelAsyncQueries(AsyncQuery except) {
+        int count = 0;
+        for (AsyncQuery query : asyncQueries.values()) {
+            if (query != except && query.cancel()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     void setConnection(Connection conn) throws SQLException {
+        statementCache.clear();
+        closePooledConnections();
         this.conn = conn;
+        connectionReleased = false;
     }
 
+    /**
+     * Get the connection. If it was closed to free memory, it is opened again,
+     * but the statement fails, so that the user knows that the settings of
+     * the old connection are gone.
+     *
+     * @return the connection, or null if not connected
+     */
     Connection getConnection() {
-        return conn;
+        Connection c = conn;
+        if (c != null) {
+            return c;
+        }
+        // releaseConnections holds the lock while the connection is null
+        // and may give it back
+        synchronized (this) {
+            if (conn == null && connectionReleased) {
+                try {
+                    conn = openConnection();
+                } catch (SQLException e) {
+                    throw DbException.convert(e);
+                }
+                connectionReleased = false;
+                throw DbException.convert(new SQLException("The connection was closed after a long time "
+                        + "without use to free memory, and was opened again. The schema, the isolation level, "
+                        + "the variables and the temporary tables of the old connection are gone. "
+                        + "Please execute the statement again."));
+            }
+            return conn;
+        }
+    }
+
+    void setConnectionProperties(Properties connectionProperties) {
+        this.connectionProperties = connectionProperties;
+    }
+
+    /**
+     * Open another connection to the database of this session, with the
+     * credentials used to log in. The caller must close it.
+     *
+     * @return the new connection
+     */
+    Connection openConnection() throws SQLException {
+        String url = (String) map.get("url");
+        if (url == null || connectionProperties == null) {
+            throw new SQLException("Not logged in");
+        }
+        return DriverManager.getConnection(url, connectionProperties);
+    }
+
+    /**
+     * Get an idle read-only connection to the database of this session, or
+     * open a new one. It is given back with returnConnection.
+     *
+     * @return the connection
+     */
+    Connection borrowConnection() throws SQLException {
+        Connection c;
+        synchronized (pooledConnections) {
+            c = pooledConnections.poll();
+        }
+        if (c == null) {
+            c = openConnection();
+            c.setReadOnly(true);
+        }
+        return c;
+    }
+
+    /**
+     * Give back a connection of borrowConnection. It is closed if enough
+     * connections are idle already.
+     *
+     * @param c the connection
+     */
+    void returnConnection(Connection c) {
+        synchronized (pooledConnections) {
+            if (pooledConnections.size() < MAX_POOLED_CONNECTIONS) {
+                pooledConnections.push(c);
+                return;
+            }
+        }
+        closeSilently(c);
+    }
+
+    private void closePooledConnections() {
+        synchronized (pooledConnections) {
+            for (Connection c; (c = pooledConnections.poll()) != null;) {
+                closeSilently(c);
+            }
+        }
+    }
+
+    private static void closeSilently(Connection c) {
+        try {
+            c.close();
+        } catch (Exception e) {
+            // ignore
+        }
     }
 
     public boolean isH2() {
@@ -222,11 +607,179 @@ class ServiceSession {
         return shutdownServerOnDisconnect;
     }
 
+    /**
+     * Release the edit window and close the updatable result set.
+     */
+    synchronized void closeEdit() {
+        editWindow = null;
+        if (result != null) {
+            try {
+                result.close();
+            } catch (Exception e) {
+                // ignore
+            }
+            result = null;
+        }
+    }
+
+    /**
+     * Release the edit window and the updatable result set if they were not
+     * used for some time.
+     *
+     * @param now the current time
+     */
+    void releaseIdleEdit(long now) {
+        if ((editWindow != null || result != null) && editAccess + EditWindow.IDLE_TIMEOUT < now) {
+            closeEdit();
+        }
+    }
+
+    /**
+     * Check if a statement or an asynchronous query of this session is
+     * executed.
+     *
+     * @return true if the session is busy
+     */
+    synchronized boolean isBusy() {
+        if (executingStatement != null) {
+            return true;
+        }
+        for (AsyncQuery query : asyncQueries.values()) {
+            if (!query.isFinished()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Estimate the memory used by this session. Only what the session keeps
+     * is counted, with a fixed size for the objects that are mostly kept by
+     * the driver, see SessionMemory.
+     *
+     * @return the size in bytes
+     */
+    long estimateMemory() {
+        long m = SessionMemory.SESSION;
+        Object r = map.get("result");
+        if (r instanceof String) {
+            m += SessionMemory.sizeOf((String) r);
+        }
+        synchronized (commandHistory) {
+            for (String sql : commandHistory) {
+                m += SessionMemory.sizeOf(sql);
+            }
+        }
+        m += (long) (tableList.size() + nodeList.size()) * SessionMemory.TREE_NODE;
+        m += (long) statementCache.size() * SessionMemory.STATEMENT;
+        synchronized (pooledConnections) {
+            m += (long) pooledConnections.size() * SessionMemory.CONNECTION;
+        }
+        if (conn != null) {
+            m += SessionMemory.CONNECTION;
+        }
+        synchronized (this) {
+            m += (long) cursors.size() * SessionMemory.CURSOR;
+            m += (long) lobs.size() * SessionMemory.LOB;
+            if (result != null) {
+                m += SessionMemory.CURSOR;
+            }
+            EditWindow w = editWindow;
+            if (w != null) {
+                m += w.estimateMemory();
+            }
+            for (AsyncQuery query : asyncQueries.values()) {
+                m += query.getResultMemory();
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Check if the session has an open cursor, an edit window or an updatable
+     * result set, which the user may still use.
+     *
+     * @return true if there is one
+     */
+    synchronized boolean hasOpenResults() {
+        return !cursors.isEmpty() || editWindow != null || result != null;
+    }
+
+    /**
+     * Free the results of this session: free the LOBs, forget the last
+     * result, and write the results of the finished asynchronous queries to
+     * temporary files.
+     *
+     * @return the number of results written to files
+     */
+    int releaseResults() {
+        freeLobs();
+        map.remove("result");
+        int count = 0;
+        synchronized (this) {
+            for (AsyncQuery query : asyncQueries.values()) {
+                if (query.spill()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close the connections of this session. The connection is opened again
+     * when it is used, so it is only closed if no transaction is open, and
+     * if the session can log in again. It is not closed if a request got the
+     * session in the meantime.
+     *
+     * @param idleBefore the session must not have been used since this time
+     * @return the number of closed connections
+     */
+    synchronized int releaseConnections(long idleBefore) {
+        int count;
+        synchronized (pooledConnections) {
+            count = pooledConnections.size();
+        }
+        closePooledConnections();
+        Connection c = conn;
+        if (c != null && connectionProperties != null && map.get("url") != null) {
+            try {
+                if (!c.getAutoCommit()) {
+                    return count;
+                }
+            } catch (SQLException e) {
+                return count;
+            }
+            // a request sets lastAccess before it reads the connection: it
+            // either sees null and waits for the lock in getConnection, or
+            // is seen here
+            connectionReleased = true;
+            conn = null;
+            if (lastAccess >= idleBefore) {
+                conn = c;
+                connectionReleased = false;
+                return count;
+            }
+            statementCache.clear();
+            closeSilently(c);
+            count++;
+        }
+        return count;
+    }
+
     /**
      * Close the connection and stop the statement if one is currently
      * executing.
      */
     void close() {
+        connectionReleased = false;
+        cancelAsyncQueries(null);
+        removeAsyncQueries();
+        closeEdit();
+        closeCursors();
+        closePooledConnections();
+        freeLobs();
+        statementCache.clear();
         if (executingStatement != null) {
             try {
                 executingStatement.cancel();
@@ -241,6 +794,13 @@ class ServiceSession {
                 // ignore
             }
         }
+        if (serverSession != null) {
+            try {
+                serverSession.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
     }
 
 }
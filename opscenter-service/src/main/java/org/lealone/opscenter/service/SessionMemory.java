@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.util.Utils;
+
+/**
+ * The memory accounting of the web sessions. The memory of each session is
+ * estimated when the sessions are checked for expiry. If all sessions together
+ * use more than the budget, the sessions that were not used for the longest
+ * time release their results first: the LOBs are freed, and the results of
+ * finished asynchronous queries are written to temporary files. If that is
+ * not enough, their connections are closed; the next statement fails with a
+ * message, and the connection is opened again. Sessions with an open cursor
+ * or edit window are skipped, because these need the connection. The sweep
+ * closes a cursor that was not read for lealone.opscenter.cursorIdleTimeout
+ * seconds, and an edit window that was not used for
+ * lealone.opscenter.editIdleTimeout seconds, so the session can release its
+ * memory after that.
+ */
+class SessionMemory {
+
+    /**
+     * The memory all sessions together may use, in MB, 0 for no limit.
+     */
+    private static final long BUDGET = Utils.getProperty("lealone.opscenter.sessionMemoryBudget", 256) * 1024L
+            * 1024;
+
+    /**
+     * The time after which an unused session may release its results and
+     * connections, in milliseconds.
+     */
+    private static final long IDLE_TIME = Utils.getProperty("lealone.opscenter.sessionIdleTime", 300) * 1000L;
+
+    /**
+     * The estimated size of the objects a session keeps, in bytes. The memory
+     * of a connection or a result set is mostly in the driver and the
+     * database, so it can only be guessed.
+     */
+    static final int SESSION = 2 * 1024, CONNECTION = 64 * 1024, CURSOR = 64 * 1024, STATEMENT = 4 * 1024,
+            LOB = 8 * 1024, TREE_NODE = 256;
+
+    private final AtomicLong releasedResults = new AtomicLong();
+    private final AtomicLong spilledResults = new AtomicLong();
+    private final AtomicLong closedConnections = new AtomicLong();
+    private volatile long total;
+
+    /**
+     * Estimate the size of a string.
+     *
+     * @param s the string
+     * @return the size in bytes
+     */
+    static long sizeOf(String s) {
+        return s == null ? 0 : 40 + 2L * s.length();
+    }
+
+    /**
+     * Estimate the memory of the sessions, and free memory of the idle
+     * sessions if the budget is exceeded.
+     *
+     * @param sessions the sessions
+     * @param now the current time
+     */
+    void check(Collection<ServiceSession> sessions, long now) {
+        long sum = 0;
+        ArrayList<ServiceSession> idle = new ArrayList<>();
+        for (ServiceSession session : sessions) {
+            long m = session.estimateMemory();
+            session.memory = m;
+            sum += m;
+            if (session.lastAccess + IDLE_TIME < now) {
+                idle.add(session);
+            }
+        }
+        if (BUDGET > 0 && sum > BUDGET && !idle.isEmpty()) {
+            // the least recently used first
+            idle.sort((a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+            for (int i = 0, size = idle.size(); i < size && sum > BUDGET; i++) {
+                ServiceSession session = idle.get(i);
+                if (session.isBusy() || session.hasOpenResults()) {
+                    continue;
+                }
+                spilledResults.addAndGet(session.releaseResults());
+                releasedResults.incrementAndGet();
+                sum -= update(session);
+            }
+            for (int i = 0, size = idle.size(); i < size && sum > BUDGET; i++) {
+                ServiceSession session = idle.get(i);
+                if (session.isBusy() || session.hasOpenResults()) {
+                    continue;
+                }
+                closedConnections.addAndGet(session.releaseConnections(now - IDLE_TIME));
+                sum -= update(session);
+            }
+        }
+        total = sum;
+    }
+
+    private static long update(ServiceSession session) {
+        long m = session.estimateMemory();
+        long freed = session.memory - m;
+        session.memory = m;
+        return freed;
+    }
+
+    HashMap<String, Object> getInfo() {
+        HashMap<String, Object> m = new HashMap<>();
+        m.put("memory", total / 1024 + " KB");
+        m.put("memoryBudget", BUDGET > 0 ? BUDGET / 1024 / 1024 + " MB" : "none");
+        m.put("releasedResults", releasedResults.get());
+        m.put("spilledResults", spilledResults.get());
+        m.put("closedConnections", closedConnections.get());
+        return m;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.h2.util.Utils;
+
+/**
+ * The web sessions by session id. Lookups do not scan the sessions: expired
+ * sessions are removed by a background thread, which also closes them, so that
+ * their connections and statements are released. The same thread keeps the
+ * memory of the sessions within the budget, see SessionMemory.
+ */
+class SessionRegistry {
+
+    /**
+     * How often the sessions are checked for expiry, in seconds.
+     */
+    private static final int SWEEP_INTERVAL = Utils.getProperty("lealone.opscenter.sessionSweepInterval", 30);
+
+    private final ConcurrentHashMap<String, ServiceSession> sessions = new ConcurrentHashMap<>();
+    private final long timeout;
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final SessionMemory memory = new SessionMemory();
+    private volatile ScheduledExecutorService sweeper;
+    private volatile double expirationsPerSecond;
+    private long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Create a registry.
+     *
+     * @param timeout the time after which an unused session expires, in
+     *            milliseconds
+     */
+    SessionRegistry(long timeout) {
+        this.timeout = timeout;
+    }
+
+    ServiceSession get(String sessionId) {
+        return sessionId == null ? null : sessions.get(sessionId);
+    }
+
+    /**
+     * Add a session, unless the id is used already.
+     *
+     * @param sessionId the session id
+     * @param session the session
+     * @return true if the session was added
+     */
+    boolean add(String sessionId, ServiceSession session) {
+        if (sessions.putIfAbsent(sessionId, session) != null) {
+            return false;
+        }
+        created.incrementAndGet();
+        if (sweeper == null) {
+            startSweeper();
+        }
+        return true;
+    }
+
+    /**
+     * Remove a session. The caller closes it.
+     *
+     * @param sessionId the session id
+     * @return the session, or null
+     */
+    ServiceSession remove(String sessionId) {
+        ServiceSession session = sessionId == null ? null : sessions.remove(sessionId);
+        if (session != null) {
+            closed.incrementAndGet();
+        }
+        return session;
+    }
+
+    Collection<ServiceSession> getAll() {
+        return sessions.values();
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    private synchronized void startSweeper() {
+        if (sweeper == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "OpsCenterSessionSweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.SECONDS);
+            sweeper = executor;
+        }
+    }
+
+    /**
+     * Close and remove the expired sessions, release the unused cursors and
+     * edit windows of the others, and free memory of the idle sessions if they
+     * use too much.
+     */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Map.Entry<String, ServiceSession> e : sessions.entrySet()) {
+            ServiceSession session = e.getValue();
+            if (session.lastAccess + timeout < now) {
+                if (sessions.remove(e.getKey(), session)) {
+                    if (session.lastAccess + timeout >= now) {
+                        // a request got the session while it was checked
+                        sessions.putIfAbsent(e.getKey(), session);
+                        continue;
+                    }
+                    count++;
+                    try {
+                        session.close();
+                    } catch (Throwable t) {
+                        // ignore
+                    }
+                }
+            } else {
+                session.releaseIdleCursors(now);
+                session.releaseIdleEdit(now);
+            }
+        }
+        expired.addAndGet(count);
+        memory.check(sessions.values(), now);
+        long elapsed = Math.max(1, now - lastSweep);
+        expirationsPerSecond = count * 1000.0 / elapsed;
+        lastSweep = now;
+    }
+
+    HashMap<String, Object> getInfo() {
+        HashMap<String, Object> m = new HashMap<>();
+        m.put("active", sessions.size());
+        m.put("created", created.get());
+        m.put("expired", expired.get());
+        m.put("closed", closed.get());
+        m.put("expirationsPerSecond", String.format("%.3f", expirationsPerSecond));
+        m.put("timeout", timeout / 1000 + " s");
+        m.putAll(memory.getInfo());
+        return m;
+    }
+}
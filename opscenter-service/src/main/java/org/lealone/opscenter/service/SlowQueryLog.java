@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+/**
+ * The slow query log. Statements that take longer than the threshold are put
+ * into a lock-free queue, and a background thread writes them into the table
+ * SLOW_QUERY_LOG of the opscenter database, together with the EXPLAIN output
+ * of the statement. The query path never waits for the log: if the queue is
+ * full, the entry is dropped and counted.
+ * <p>
+ * The table keeps the most recent entries only, see
+ * lealone.opscenter.slowQueryRetention.
+ */
+class SlowQueryLog implements Runnable {
+
+    /**
+     * The threshold in milliseconds, a negative value disables the log.
+     */
+    private static final int THRESHOLD = Utils.getProperty("lealone.opscenter.slowQueryThreshold", 1000);
+
+    /**
+     * The database the log is written to.
+     */
+    private static final String URL = Utils.getProperty("lealone.opscenter.slowQueryUrl",
+            "jdbc:lealone:embed:opscenter?user=root&password=");
+
+    /**
+     * The maximum number of rows of the log table.
+     */
+    private static final int RETENTION = Utils.getProperty("lealone.opscenter.slowQueryRetention", 10_000);
+
+    /**
+     * The maximum number of entries waiting to be written.
+     */
+    private static final int QUEUE_SIZE = 1000;
+
+    /**
+     * The maximum length of the statement text and of the plan.
+     */
+    private static final int MAX_TEXT = 10_000;
+
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    static final SlowQueryLog instance = new SlowQueryLog();
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Thread thread;
+    private volatile String lastError;
+    private boolean tableCreated;
+
+    private SlowQueryLog() {
+    }
+
+    /**
+     * Log the statement if it was slow. Never blocks.
+     *
+     * @param session the session
+     * @param sql the statement
+     * @param nanos the execution time
+     * @param rows the number of rows read or updated
+     * @param error the exception, or null
+     */
+    void log(ServiceSession session, String sql, long nanos, long rows, Throwable error) {
+        if (THRESHOLD < 0 || nanos < THRESHOLD * 1_000_000L || session == null) {
+            return;
+        }
+        if (queued.incrementAndGet() > QUEUE_SIZE) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Entry(session, sql, nanos, rows, error == null ? null : error.getMessage()));
+        if (thread == null) {
+            start();
+        }
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            Thread t = new Thread(this, "OpsCenterSlowQueryLog");
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+        }
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Entry> list = new ArrayList<>();
+        while (true) {
+            LockSupport.parkNanos(FLUSH_INTERVAL);
+            for (Entry e; (e = queue.poll()) != null;) {
+                queued.decrementAndGet();
+                list.add(e);
+            }
+            if (list.isEmpty()) {
+                continue;
+            }
+            for (Entry e : list) {
+                e.plan = explain(e);
+            }
+            try {
+                write(list);
+                logged.addAndGet(list.size());
+                lastError = null;
+            } catch (Throwable t) {
+                dropped.addAndGet(list.size());
+                lastError = t.getMessage();
+            }
+            list.clear();
+        }
+    }
+
+    /**
+     * Get the plan of the statement with a new connection to the database of
+     * the session. Only queries and DML statements are explained.
+     */
+    private static String explain(Entry e) {
+        String upper = StringUtils.toUpperEnglish(e.sql.substring(0, Math.min(e.sql.length(), 10)));
+        if (!(ResultCache.isQuery(e.sql) || upper.startsWith("INSERT") || upper.startsWith("UPDATE")
+                || upper.startsWith("DELETE") || upper.startsWith("MERGE"))) {
+            return null;
+        }
+        try (Connection conn = e.session.openConnection(); Statement stat = conn.createStatement()) {
+            stat.setQueryTimeout(10);
+            StringBuilder buff = new StringBuilder();
+            try (ResultSet rs = stat.executeQuery("EXPLAIN " + e.sql)) {
+                while (rs.next()) {
+                    buff.append(rs.getString(1)).append('\n');
+                }
+            }
+            return truncate(buff.toString().trim());
+        } catch (Throwable t) {
+            return "EXPLAIN failed: " + t.getMessage();
+        }
+    }
+
+    private void write(ArrayList<Entry> list) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(URL)) {
+            if (!tableCreated) {
+                try (Statement stat = conn.createStatement()) {
+                    stat.execute("CREATE TABLE IF NOT EXISTS SLOW_QUERY_LOG(ID BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                            + "LOG_TIME TIMESTAMP, USER_NAME VARCHAR, SESSION_ID VARCHAR, URL VARCHAR, "
+                            + "SQL_TEXT VARCHAR, ELAPSED_MS BIGINT, ROW_COUNT BIGINT, ERROR VARCHAR, PLAN VARCHAR)");
+                }
+                tableCreated = true;
+            }
+            try (PreparedStatement prep = conn.prepareStatement("INSERT INTO SLOW_QUERY_LOG(LOG_TIME, USER_NAME, "
+                    + "SESSION_ID, URL, SQL_TEXT, ELAPSED_MS, ROW_COUNT, ERROR, PLAN) "
+                    + "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (Entry e : list) {
+                    prep.setTimestamp(1, new Timestamp(e.time));
+                    prep.setString(2, e.user);
+                    prep.setString(3, e.sessionId);
+                    prep.setString(4, e.url);
+                    prep.setString(5, truncate(e.sql));
+                    prep.setLong(6, e.nanos / 1_000_000);
+                    prep.setLong(7, e.rows);
+                    prep.setString(8, e.error);
+                    prep.setString(9, e.plan);
+                    prep.addBatch();
+                }
+                prep.executeBatch();
+            }
+            try (PreparedStatement prep = conn.prepareStatement(
+                    "DELETE FROM SLOW_QUERY_LOG WHERE ID <= (SELECT MAX(ID) FROM SLOW_QUERY_LOG) - ?")) {
+                prep.setLong(1, RETENTION);
+                prep.executeUpdate();
+            }
+        }
+    }
+
+    private static String truncate(String s) {
+        return s == null || s.length() <= MAX_TEXT ? s : s.substring(0, MAX_TEXT) + "...";
+    }
+
+    String getInfoString() {
+        if (THRESHOLD < 0) {
+            return "disabled";
+        }
+        String error = lastError;
+        return "threshold " + THRESHOLD + " ms, " + logged.get() + " logged, " + queued.get() + " queued, "
+                + dropped.get() + " dropped" + (error == null ? "" : ", last error: " + error);
+    }
+
+    /**
+     * A slow statement.
+     */
+    private static class Entry {
+
+        final long time = System.currentTimeMillis();
+        final ServiceSession session;
+        final String user;
+        final String sessionId;
+        final String url;
+        final String sql;
+        final long nanos;
+        final long rows;
+        final String error;
+        String plan;
+
+        Entry(ServiceSession session, String sql, long nanos, long rows, String error) {
+            this.session = session;
+            Object user = session.get("user");
+            this.user = user == null ? null : user.toString();
+            Object sessionId = session.get("sessionId");
+            this.sessionId = sessionId == null ? null : sessionId.toString();
+            this.url = (String) session.get("url");
+            this.sql = sql;
+            this.nanos = nanos;
+            this.rows = rows;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import org.h2.util.StringUtils;
+
+/**
+ * Replaces the literals of a SQL statement with parameters, so that statements
+ * that only differ in their literals share the same text.
+ * <p>
+ * Only plain string literals and numbers in a value position (after an
+ * operator, a comma, an opening parenthesis or a few keywords) are replaced.
+ * Typed literals such as DATE '2000-01-01' or X'00' are kept as they are.
+ */
+class SqlLiterals {
+
+    private static final String[] VALUE_KEYWORDS = { "LIKE", "AND", "OR", "BETWEEN", "WHEN", "THEN", "ELSE" };
+
+    private SqlLiterals() {
+    }
+
+    /**
+     * Replace the literals with '?'.
+     *
+     * @param sql the SQL statement
+     * @param values the list to add the literal values to (String, Long or
+     *            BigDecimal), or null if the values are not needed
+     * @return the statement with parameters, or null if the statement contains
+     *         comments, parameters or text that could not be parsed
+     */
+    static String parameterize(String sql, List<Object> values) {
+        int len = sql.length();
+        StringBuilder buff = new StringBuilder(len);
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            char n = i + 1 < len ? sql.charAt(i + 1) : 0;
+            if (c == '\'') {
+                StringBuilder v = new StringBuilder();
+                int end = i + 1;
+                while (true) {
+                    if (end >= len) {
+                        return null;
+                    }
+                    char d = sql.charAt(end);
+                    if (d == '\'') {
+                        if (end + 1 < len && sql.charAt(end + 1) == '\'') {
+                            v.append('\'');
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    v.append(d);
+                    end++;
+                }
+                end++;
+                if (isValuePosition(buff)) {
+                    buff.append('?');
+                    if (values != null) {
+                        values.add(v.toString());
+                    }
+                } else {
+                    buff.append(sql, i, end);
+                }
+                i = end;
+            } else if (c == '"') {
+                int end = sql.indexOf('"', i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                buff.append(sql, i, end + 1);
+                i = end + 1;
+            } else if (c == '?' || c == '-' && n == '-' || c == '/' && n == '*' || c == '$' && n == '$') {
+                return null;
+            } else if (Character.isLetter(c) || c == '_') {
+                int end = i + 1;
+                while (end < len && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                buff.append(sql, i, end);
+                i = end;
+            } else if (isNumberStart(c, n) || c == '-' && isNumberStart(n, i + 2 < len ? sql.charAt(i + 2) : 0)
+                    && isValuePosition(buff)) {
+                int end = i + 1;
+                // .5 starts with the dot, -.5 has it in the loop
+                boolean decimal = c == '.';
+                while (end < len) {
+                    char d = sql.charAt(end);
+                    if (d == '.' || d == 'e' || d == 'E') {
+                        decimal = true;
+                    } else if ((d == '+' || d == '-') && decimal
+                            && (sql.charAt(end - 1) == 'e' || sql.charAt(end - 1) == 'E')) {
+                        // exponent sign
+                    } else if (!Character.isDigit(d)) {
+                        break;
+                    }
+                    end++;
+                }
+                if (end < len && isIdentifierPart(sql.charAt(end)) || !isValuePosition(buff)) {
+                    // hex literal or similar
+                    while (end < len && isIdentifierPart(sql.charAt(end))) {
+                        end++;
+                    }
+                    buff.append(sql, i, end);
+                } else {
+                    String s = sql.substring(i, end);
+                    buff.append('?');
+                    if (values != null) {
+                        values.add(!decimal && s.length() < 19 ? (Object) Long.valueOf(s) : new BigDecimal(s));
+                    }
+                }
+                i = end;
+            } else {
+                buff.append(c);
+                i++;
+            }
+        }
+        return buff.toString();
+    }
+
+    /**
+     * Remove the comments and replace all string literals and numbers with
+     * '?', for a statement that can not be parameterized. The result can not
+     * be executed, it is only used to group similar statements.
+     *
+     * @param sql the SQL statement
+     * @return the normalized statement
+     */
+    static String normalize(String sql) {
+        int len = sql.length();
+        StringBuilder buff = new StringBuilder(len);
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            char n = i + 1 < len ? sql.charAt(i + 1) : 0;
+            if (c == '\'') {
+                int end = i + 1;
+                while (end < len) {
+                    if (sql.charAt(end) == '\'') {
+                        if (end + 1 < len && sql.charAt(end + 1) == '\'') {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                buff.append('?');
+                i = end + 1;
+            } else if (c == '"') {
+                int end = sql.indexOf('"', i + 1);
+                end = end < 0 ? len : end + 1;
+                buff.append(sql, i, end);
+                i = end;
+            } else if (c == '$' && n == '$') {
+                int end = sql.indexOf("$$", i + 2);
+                buff.append('?');
+                i = end < 0 ? len : end + 2;
+            } else if (c == '-' && n == '-') {
+                int end = sql.indexOf('\n', i);
+                buff.append(' ');
+                i = end < 0 ? len : end + 1;
+            } else if (c == '/' && n == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                buff.append(' ');
+                i = end < 0 ? len : end + 2;
+            } else if (Character.isLetter(c) || c == '_') {
+                int end = i + 1;
+                while (end < len && isIdentifierPart(sql.charAt(end))) {
+                    end++;
+                }
+                buff.append(sql, i, end);
+                i = end;
+            } else if (isNumberStart(c, n)) {
+                int end = i + 1;
+                while (end < len) {
+                    char d = sql.charAt(end);
+                    if (!isIdentifierPart(d) && d != '.' && !((d == '+' || d == '-')
+                            && (sql.charAt(end - 1) == 'e' || sql.charAt(end - 1) == 'E'))) {
+                        break;
+                    }
+                    end++;
+                }
+                buff.append('?');
+                i = end;
+            } else {
+                buff.append(c);
+                i++;
+            }
+        }
+        return buff.toString();
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static boolean isNumberStart(char c, char next) {
+        return Character.isDigit(c) || c == '.' && Character.isDigit(next);
+    }
+
+    private static boolean isValuePosition(StringBuilder buff) {
+        int i = buff.length() - 1;
+        while (i >= 0 && Character.isWhitespace(buff.charAt(i))) {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        char c = buff.charAt(i);
+        if ("(,=<>+-*/%|".indexOf(c) >= 0) {
+            return true;
+        }
+        int end = i + 1;
+        while (i >= 0 && Character.isLetter(buff.charAt(i))) {
+            i--;
+        }
+        if (i >= 0 && isIdentifierPart(buff.charAt(i))) {
+            return false;
+        }
+        String word = StringUtils.toUpperEnglish(buff.substring(i + 1, end));
+        for (String w : VALUE_KEYWORDS) {
+            if (w.equals(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+/**
+ * A LRU cache of the prepared statements of a session, keyed by the normalized
+ * SQL text. Only statements without parameters are cached.
+ * <p>
+ * A statement is removed from the cache while it is in use, so that an open
+ * result set is never closed by another execution of the same statement. A
+ * statement that was in use when the cache was cleared is closed when it is
+ * given back, because its plan may be stale.
+ */
+class StatementCache {
+
+    /**
+     * The maximum number of cached statements per session.
+     */
+    static final int MAX_SIZE = Utils.getProperty("lealone.opscenter.statementCacheSize", 32);
+
+    private final LinkedHashMap<String, PreparedStatement> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    /**
+     * The statements in use, with the generation of the cache when they were
+     * taken. The generation is incremented by clear.
+     */
+    private final IdentityHashMap<PreparedStatement, Long> inUse = new IdentityHashMap<>();
+    private long generation;
+
+    /**
+     * Check if the statement can be cached.
+     *
+     * @param sql the SQL statement
+     * @return true if it can be cached
+     */
+    static boolean isCacheable(String sql) {
+        return MAX_SIZE > 0 && !sql.startsWith("@") && sql.indexOf('?') < 0 && !isDDL(sql);
+    }
+
+    /**
+     * Check if the statement changes the schema or the current schema, in
+     * which case the cached statements may be invalid. The key of a statement
+     * does not contain the current schema, so the same unqualified statement
+     * could otherwise run against the tables of another schema.
+     *
+     * @param sql the SQL statement
+     * @return true for CREATE, DROP, ALTER, RUNSCRIPT, SET SCHEMA and USE
+     */
+    static boolean isDDL(String sql) {
+        String s = getKey(StringUtils.toUpperEnglish(sql.trim()));
+        return s.startsWith("CREATE") || s.startsWith("DROP") || s.startsWith("ALTER")
+                || s.startsWith("RUNSCRIPT") || s.startsWith("SET SCHEMA") || s.startsWith("USE ");
+    }
+
+    /**
+     * Normalize the SQL text: white space outside of quoted text is collapsed.
+     *
+     * @param sql the SQL statement
+     * @return the cache key
+     */
+    static String getKey(String sql) {
+        int length = sql.length();
+        StringBuilder buff = new StringBuilder(length);
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                buff.append(c);
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && buff.length() > 0) {
+                    buff.append(' ');
+                }
+                space = false;
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                }
+                buff.append(c);
+            }
+        }
+        return buff.toString();
+    }
+
+    /**
+     * Get a cached statement, or prepare a new one. The statement must be given
+     * back with release, or closed.
+     *
+     * @param conn the connection
+     * @param sql the SQL statement
+     * @param key the cache key
+     * @return the prepared statement
+     */
+    PreparedStatement acquire(Connection conn, String sql, String key) throws SQLException {
+        long g;
+        synchronized (this) {
+            PreparedStatement prep = map.remove(key);
+            if (prep != null && !prep.isClosed()) {
+                hits++;
+                inUse.put(prep, generation);
+                return prep;
+            }
+            misses++;
+            g = generation;
+        }
+        PreparedStatement prep = conn.prepareStatement(sql);
+        synchronized (this) {
+            inUse.put(prep, g);
+        }
+        return prep;
+    }
+
+    /**
+     * Put a statement back into the cache. If the cache is full, the least
+     * recently used statement is closed.
+     *
+     * @param key the cache key
+     * @param prep the statement
+     */
+    void release(String key, PreparedStatement prep) {
+        PreparedStatement old = null;
+        PreparedStatement eldest = null;
+        synchronized (this) {
+            Long g = inUse.remove(prep);
+            if (g == null || g != generation) {
+                // taken before the cache was cleared
+                eldest = prep;
+            } else {
+                old = map.put(key, prep);
+                if (map.size() > MAX_SIZE) {
+                    Iterator<PreparedStatement> it = map.values().iterator();
+                    eldest = it.next();
+                    it.remove();
+                }
+            }
+        }
+        if (old != null && old != prep) {
+            close(old);
+        }
+        if (eldest != null) {
+            close(eldest);
+        }
+    }
+
+    /**
+     * Close all cached statements, for example after a schema change.
+     */
+    void clear() {
+        PreparedStatement[] list;
+        synchronized (this) {
+            generation++;
+            // statements closed instead of given back
+            inUse.keySet().removeIf(StatementCache::isClosed);
+            if (map.isEmpty()) {
+                return;
+            }
+            list = map.values().toArray(new PreparedStatement[0]);
+            map.clear();
+            invalidations++;
+        }
+        for (PreparedStatement prep : list) {
+            close(prep);
+        }
+    }
+
+    /**
+     * Get the number of cached statements.
+     */
+    synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Get the cache statistics as hits/lookups, size and invalidations.
+     *
+     * @return the statistics
+     */
+    synchronized String getInfoString() {
+        return hits + "/" + (hits + misses) + ", " + map.size() + ", " + invalidations;
+    }
+
+    private static boolean isClosed(PreparedStatement prep) {
+        try {
+            return prep.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    private static void close(PreparedStatement prep) {
+        try {
+            prep.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.math.BigDecimal;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.h2.tools.SimpleResultSet;
+import org.h2.util.Utils;
+
+/**
+ * Execution statistics by statement fingerprint. The fingerprint of a
+ * statement is its text with the literals replaced by '?' and the white space
+ * normalized, so that the statements that only differ in their values are
+ * counted together.
+ * <p>
+ * The statistics are shown with @stats [column] [limit], the most expensive
+ * statements first, and cleared with @stats_reset.
+ */
+class StatementStats {
+
+    /**
+     * The maximum number of fingerprints. The statements of further
+     * fingerprints are counted as one.
+     */
+    private static final int MAX_STATEMENTS = Utils.getProperty("lealone.opscenter.statsMaxStatements", 500);
+
+    /**
+     * The maximum length of a fingerprint.
+     */
+    private static final int MAX_LENGTH = 2000;
+
+    private static final String OTHER = "(other statements)";
+
+    private static final String[] COLUMNS = { "FINGERPRINT", "CALLS", "TOTAL_MS", "MEAN_MS", "MIN_MS", "MAX_MS",
+            "P95_MS", "P99_MS", "ROWS", "ERRORS" };
+
+    static final StatementStats instance = new StatementStats();
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private StatementStats() {
+    }
+
+    /**
+     * Get the fingerprint of a statement.
+     *
+     * @param sql the statement
+     * @return the fingerprint
+     */
+    static String getFingerprint(String sql) {
+        String s = SqlLiterals.parameterize(sql.trim(), null);
+        if (s == null) {
+            // comments or parameters: every literal is replaced, so that each
+            // value does not get a fingerprint of its own
+            s = SqlLiterals.normalize(sql.trim());
+        }
+        StringBuilder buff = new StringBuilder(s.length());
+        char quote = 0;
+        for (int i = 0, length = s.length(); i < length; i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (Character.isWhitespace(c)) {
+                if (buff.length() > 0 && buff.charAt(buff.length() - 1) != ' ') {
+                    buff.append(' ');
+                }
+                continue;
+            } else if (c == '?' && skipParameter(buff)) {
+                // lists of parameters such as IN(?, ?, ?) become IN(?, ...)
+                continue;
+            }
+            buff.append(c);
+            if (buff.length() >= MAX_LENGTH) {
+                break;
+            }
+        }
+        return buff.toString().trim();
+    }
+
+    /**
+     * Whether a parameter can be skipped because it continues a list of
+     * parameters. If yes, the list is shortened to "?, ...".
+     */
+    private static boolean skipParameter(StringBuilder buff) {
+        int end = buff.length();
+        if (end > 0 && buff.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (end < 2 || buff.charAt(end - 1) != ',') {
+            return false;
+        }
+        String before = buff.substring(0, end - 1);
+        if (before.endsWith("?, ...")) {
+            buff.setLength(end - 1);
+            return true;
+        } else if (before.endsWith("?")) {
+            buff.setLength(end - 1);
+            buff.append(", ...");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record the execution of a statement.
+     *
+     * @param sql the statement
+     * @param nanos the execution time
+     * @param rows the number of rows read
+     * @param error whether the statement failed
+     */
+    void record(String sql, long nanos, long rows, boolean error) {
+        if (sql == null || sql.startsWith("@")) {
+            return;
+        }
+        Entry e = getEntry(getFingerprint(sql));
+        synchronized (e) {
+            e.histogram.record(nanos);
+            e.totalNanos += nanos;
+            e.rows += rows;
+            if (error) {
+                e.errors++;
+            }
+        }
+    }
+
+    /**
+     * Add the rows read from a cursor after the first page.
+     *
+     * @param sql the statement
+     * @param rows the number of rows
+     */
+    void addRows(String sql, long rows) {
+        if (rows > 0) {
+            Entry e = entries.get(getFingerprint(sql));
+            if (e != null) {
+                synchronized (e) {
+                    e.rows += rows;
+                }
+            }
+        }
+    }
+
+    private Entry getEntry(String fingerprint) {
+        Entry e = entries.get(fingerprint);
+        if (e == null) {
+            if (entries.size() >= MAX_STATEMENTS) {
+                fingerprint = OTHER;
+            }
+            e = entries.computeIfAbsent(fingerprint, Entry::new);
+        }
+        return e;
+    }
+
+    void reset() {
+        entries.clear();
+    }
+
+    /**
+     * Get the statistics as a result set.
+     *
+     * @param orderBy the column to sort by, descending, or null for TOTAL_MS
+     * @param limit the maximum number of rows, or 0 for no limit
+     * @return the result set
+     */
+    @SuppressWarnings("unchecked")
+    SimpleResultSet getResultSet(String orderBy, int limit) {
+        int order = 2;
+        if (orderBy != null) {
+            order = -1;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (COLUMNS[i].equalsIgnoreCase(orderBy)) {
+                    order = i;
+                }
+            }
+            if (order < 0) {
+                throw new IllegalArgumentException("Unknown column " + orderBy + ", expected one of "
+                        + String.join(", ", COLUMNS));
+            }
+        }
+        ArrayList<Object[]> rows = new ArrayList<>(entries.size());
+        for (Entry e : entries.values()) {
+            rows.add(e.getRow());
+        }
+        if (order == 0) {
+            rows.sort(Comparator.comparing(r -> (String) r[0]));
+        } else {
+            int o = order;
+            rows.sort((a, b) -> ((Comparable<Object>) b[o]).compareTo(a[o]));
+        }
+        SimpleResultSet rs = new SimpleResultSet();
+        rs.addColumn(COLUMNS[0], Types.VARCHAR, 0, 0);
+        for (int i = 1; i < COLUMNS.length; i++) {
+            boolean millis = COLUMNS[i].endsWith("_MS");
+            rs.addColumn(COLUMNS[i], millis ? Types.DECIMAL : Types.BIGINT, millis ? 20 : 19, millis ? 3 : 0);
+        }
+        for (int i = 0, n = rows.size(); i < n && (limit <= 0 || i < limit); i++) {
+            rs.addRow(rows.get(i));
+        }
+        return rs;
+    }
+
+    /**
+     * The statistics of one fingerprint.
+     */
+    private static class Entry {
+
+        final String fingerprint;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long totalNanos;
+        long rows;
+        long errors;
+
+        Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        synchronized Object[] getRow() {
+            LatencyHistogram h = histogram;
+            long count = h.getCount();
+            return new Object[] { fingerprint, count, toMillis(totalNanos), toMillis(h.getMean()),
+                    toMillis(count == 0 ? 0 : h.getMin()), toMillis(h.getMax()), toMillis(h.getPercentile(95)),
+                    toMillis(h.getPercentile(99)), rows, errors };
+        }
+
+        private static BigDecimal toMillis(long nanos) {
+            return BigDecimal.valueOf(nanos / 1000, 3);
+        }
+    }
+}
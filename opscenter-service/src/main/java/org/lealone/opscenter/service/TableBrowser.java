@@ -0,0 +1,426 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Reads the rows of a table one page at a time, ordered by the primary key or
+ * by an indexed column. The next page starts after the sort key of the last
+ * row (keyset pagination), so that a page deep in the table is read through
+ * the index like the first one, instead of skipping all rows before it as
+ * with OFFSET.
+ * <p>
+ * The column filters and the sort order are part of the query. No state is
+ * kept on the server, the position is returned to the client with each page.
+ */
+class TableBrowser {
+
+    /**
+     * The default number of rows of a page.
+     */
+    private static final int PAGE_SIZE = Utils.getProperty("lealone.opscenter.browsePageSize", 100);
+
+    /**
+     * The maximum number of rows of a page.
+     */
+    private static final int MAX_PAGE_SIZE = 10_000;
+
+    private static final String ROWID = "_ROWID_";
+
+    private final String schema;
+    private final String tableName;
+    private final String table;
+
+    /**
+     * The quoted column names, by the column name.
+     */
+    private final LinkedHashMap<String, String> columns = new LinkedHashMap<>();
+
+    /**
+     * The primary key columns, or _ROWID_ if the table has no primary key.
+     */
+    private final ArrayList<String> keyColumns = new ArrayList<>();
+
+    /**
+     * The columns the rows can be sorted by: the primary key columns and the
+     * first column of each index.
+     */
+    private final ArrayList<String> sortableColumns = new ArrayList<>();
+
+    private TableBrowser(String schema, String tableName) {
+        this.schema = schema;
+        this.tableName = tableName;
+        this.table = (schema == null || schema.isEmpty() ? "" : StringUtils.quoteIdentifier(schema) + ".")
+                + StringUtils.quoteIdentifier(tableName);
+    }
+
+    /**
+     * Look up a table.
+     *
+     * @param conn the connection
+     * @param name the table name as in SQL, optionally with schema and quoted
+     * @return the browser
+     */
+    static TableBrowser open(Connection conn, String name) throws SQLException {
+        String[] parts = parseName(name);
+        DatabaseMetaData meta = conn.getMetaData();
+        TableBrowser b = null;
+        try (ResultSet rs = meta.getTables(null, parts[0], parts[1], null)) {
+            if (rs.next()) {
+                b = new TableBrowser(rs.getString("TABLE_SCHEM"), rs.getString("TABLE_NAME"));
+            }
+        }
+        if (b == null) {
+            throw new SQLException("Table " + name + " not found");
+        }
+        b.readMetaData(meta);
+        return b;
+    }
+
+    /**
+     * Split a table name into the schema and the table. Quoted parts are
+     * unquoted, the other parts are converted to upper case.
+     */
+    private static String[] parseName(String name) {
+        ArrayList<String> parts = new ArrayList<>(2);
+        StringBuilder buff = new StringBuilder();
+        name = name.trim();
+        for (int i = 0, length = name.length(); i < length; i++) {
+            char c = name.charAt(i);
+            if (c == '"') {
+                for (i++; i < length; i++) {
+                    c = name.charAt(i);
+                    if (c == '"') {
+                        if (i + 1 < length && name.charAt(i + 1) == '"') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    buff.append(c);
+                }
+            } else if (c == '.') {
+                parts.add(buff.toString());
+                buff.setLength(0);
+            } else {
+                buff.append(Character.toUpperCase(c));
+            }
+        }
+        parts.add(buff.toString());
+        int n = parts.size();
+        return new String[] { n > 1 ? parts.get(n - 2) : null, parts.get(n - 1) };
+    }
+
+    private void readMetaData(DatabaseMetaData meta) throws SQLException {
+        try (ResultSet rs = meta.getColumns(null, schema, tableName, null)) {
+            while (rs.next()) {
+                String c = rs.getString("COLUMN_NAME");
+                columns.put(c, StringUtils.quoteIdentifier(c));
+            }
+        }
+        TreeMap<Integer, String> primaryKey = new TreeMap<>();
+        try (ResultSet rs = meta.getPrimaryKeys(null, schema, tableName)) {
+            while (rs.next()) {
+                primaryKey.put(rs.getInt("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+            }
+        }
+        keyColumns.addAll(primaryKey.values());
+        sortableColumns.addAll(keyColumns);
+        try (ResultSet rs = meta.getIndexInfo(null, schema, tableName, false, true)) {
+            while (rs.next()) {
+                String c = rs.getString("COLUMN_NAME");
+                if (rs.getInt("ORDINAL_POSITION") == 1 && c != null && columns.containsKey(c)
+                        && !sortableColumns.contains(c)) {
+                    sortableColumns.add(c);
+                }
+            }
+        }
+        if (keyColumns.isEmpty()) {
+            keyColumns.add(ROWID);
+        }
+    }
+
+    /**
+     * Read a page.
+     *
+     * @param conn the connection
+     * @param session the session the LOBs are registered in
+     * @param orderBy the column to sort by, or null for the primary key
+     * @param descending whether to sort in descending order
+     * @param filters the filter by column name, as json object, or null
+     * @param after the position returned with the previous page, or null for
+     *            the first page
+     * @param pageSize the number of rows, 0 for the default
+     * @return the page in the format of the result-table page
+     */
+    JsonObject readPage(Connection conn, ServiceSession session, String orderBy, boolean descending,
+            String filters, String after, int pageSize) throws SQLException {
+        long time = System.currentTimeMillis();
+        if (pageSize <= 0) {
+            pageSize = PAGE_SIZE;
+        }
+        pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        ArrayList<String> sortKey = getSortKey(orderBy);
+        ArrayList<Object> params = new ArrayList<>();
+        StringBuilder where = new StringBuilder();
+        // the same condition with the values inline, for the query shown to the user and for the export
+        StringBuilder displayWhere = new StringBuilder();
+        JsonObject filterMap = filters == null || filters.trim().isEmpty() ? new JsonObject()
+                : new JsonObject(filters);
+        for (Map.Entry<String, Object> e : filterMap) {
+            String value = e.getValue() == null ? "" : e.getValue().toString().trim();
+            if (!value.isEmpty()) {
+                where.append(where.length() == 0 ? " WHERE " : " AND ");
+                displayWhere.append(displayWhere.length() == 0 ? " WHERE " : " AND ");
+                appendFilter(where, displayWhere, getQuotedColumn(e.getKey()), value, params);
+            }
+        }
+        // without primary key, the rows are identified by the row id, which is shown as last column
+        StringBuilder sql = new StringBuilder("SELECT *").append(keyColumns.contains(ROWID) ? ", " + ROWID : "")
+                .append(" FROM ").append(table).append(where);
+        // the query shown to the user, without the position
+        String displaySql = "SELECT * FROM " + table + displayWhere;
+        long rowOffset = 0;
+        ArrayList<Object> start = null;
+        if (after != null && !after.trim().isEmpty()) {
+            JsonObject position = new JsonObject(after);
+            rowOffset = position.getLong("rows", 0L);
+            start = new ArrayList<>(position.getJsonArray("key").getList());
+            if (start.size() != sortKey.size()) {
+                throw new SQLException("The position does not match the sort order, read the first page again");
+            }
+            sql.append(where.length() == 0 ? " WHERE " : " AND ");
+            appendKeyCondition(sql, sortKey, start, descending, params);
+        }
+        StringBuilder order = new StringBuilder(" ORDER BY ");
+        for (int i = 0; i < sortKey.size(); i++) {
+            order.append(i == 0 ? "" : ", ").append(quote(sortKey.get(i)))
+                    .append(descending ? " DESC NULLS LAST" : " NULLS FIRST");
+        }
+        sql.append(order);
+        displaySql += order;
+
+        JsonGridRenderer renderer = new JsonGridRenderer();
+        renderer.session = session;
+        ArrayList<Object> lastKey = null;
+        boolean hasMore = false;
+        int rows = 0;
+        try (PreparedStatement prep = conn.prepareStatement(sql.toString())) {
+            for (int i = 0, size = params.size(); i < size; i++) {
+                prep.setObject(i + 1, params.get(i));
+            }
+            // one more row to know if there is a next page
+            prep.setMaxRows(pageSize + 1);
+            QueryGovernor.setQueryTimeout(session, prep);
+            try (ResultSet rs = prep.executeQuery()) {
+                renderer.start(rs.getMetaData());
+                while (rs.next()) {
+                    if (rows == pageSize) {
+                        hasMore = true;
+                        break;
+                    }
+                    renderer.writeRow(rs, (int) rowOffset + ++rows);
+                    lastKey = readKey(rs, sortKey);
+                }
+            }
+        }
+        time = System.currentTimeMillis() - time;
+
+        JsonObject json = new JsonObject();
+        json.put("type", "result-table");
+        json.put("sql", displaySql);
+        json.put("columnNames", new JsonArray(renderer.getColumnNames()));
+        json.put("rows", new JsonArray(renderer.takeRows()));
+        json.put("lobs", new JsonObject(renderer.takeLobs()));
+        json.put("hasMore", hasMore);
+        long loaded = rowOffset + rows;
+        String total;
+        if (!hasMore && start == null) {
+            total = Long.toString(loaded);
+        } else {
+            long estimate = getRowCountEstimate(conn);
+            total = estimate < 0 ? "?" : "~" + Math.max(estimate, loaded)
+                    + (filterMap.isEmpty() ? "" : " before filtering");
+        }
+        json.put("queryInfo", "(rows " + (rows == 0 ? 0 : rowOffset + 1) + " to " + loaded + " of " + total + ", "
+                + time + " ms)");
+        JsonObject browse = new JsonObject();
+        browse.put("table", table);
+        browse.put("orderBy", sortKey.get(0));
+        browse.put("descending", descending);
+        browse.put("filters", filterMap);
+        browse.put("sortable", new JsonArray(sortableColumns));
+        browse.put("columns", new JsonArray(new ArrayList<>(columns.keySet())));
+        if (hasMore) {
+            JsonObject position = new JsonObject();
+            position.put("key", new JsonArray(lastKey));
+            position.put("rows", loaded);
+            browse.put("after", position.encode());
+        }
+        json.put("browse", browse);
+        return json;
+    }
+
+    /**
+     * Get the sort key: the sort column followed by the primary key columns,
+     * so that the key is unique.
+     */
+    private ArrayList<String> getSortKey(String orderBy) throws SQLException {
+        ArrayList<String> sortKey = new ArrayList<>();
+        if (orderBy != null && !orderBy.isEmpty() && !keyColumns.get(0).equals(orderBy)) {
+            if (!sortableColumns.contains(orderBy)) {
+                throw new SQLException("Column " + orderBy + " is not indexed, sorting by it would read the whole "
+                        + "table. Sortable columns: " + String.join(", ", sortableColumns));
+            }
+            sortKey.add(orderBy);
+        }
+        for (String k : keyColumns) {
+            if (!sortKey.contains(k)) {
+                sortKey.add(k);
+            }
+        }
+        return sortKey;
+    }
+
+    private String getQuotedColumn(String name) throws SQLException {
+        String quoted = columns.get(name);
+        if (quoted == null) {
+            throw new SQLException("Column " + name + " not found in " + table);
+        }
+        return quoted;
+    }
+
+    private String quote(String column) {
+        return ROWID.equals(column) ? ROWID : columns.get(column);
+    }
+
+    /**
+     * Append a column filter. The value is one of: null, not null, a
+     * comparison such as "&gt;= 10", a LIKE pattern with '%' or '_', or a
+     * value the column must be equal to.
+     */
+    private static void appendFilter(StringBuilder buff, StringBuilder display, String column, String value,
+            ArrayList<Object> params) {
+        String upper = StringUtils.toUpperEnglish(value);
+        if (upper.equals("NULL") || upper.equals("IS NULL")) {
+            buff.append(column).append(" IS NULL");
+            display.append(column).append(" IS NULL");
+            return;
+        } else if (upper.equals("NOT NULL") || upper.equals("IS NOT NULL")) {
+            buff.append(column).append(" IS NOT NULL");
+            display.append(column).append(" IS NOT NULL");
+            return;
+        }
+        String op = "=";
+        for (String o : new String[] { "<>", "!=", "<=", ">=", "=", "<", ">" }) {
+            if (value.startsWith(o)) {
+                op = o.equals("!=") ? "<>" : o;
+                value = value.substring(o.length()).trim();
+                break;
+            }
+        }
+        if (op.equals("=") && (value.indexOf('%') >= 0 || value.indexOf('_') >= 0)) {
+            op = "LIKE";
+        }
+        buff.append(column).append(' ').append(op).append(" ?");
+        display.append(column).append(' ').append(op).append(' ').append(StringUtils.quoteStringSQL(value));
+        params.add(value);
+    }
+
+    /**
+     * Append the keyset condition: the rows after the given key in the sort
+     * order. Only the sort column can be null, and nulls come first in
+     * ascending order and last in descending order.
+     */
+    private void appendKeyCondition(StringBuilder buff, ArrayList<String> sortKey, ArrayList<Object> key,
+            boolean descending, ArrayList<Object> params) {
+        String op = descending ? " < ?" : " > ?";
+        buff.append('(');
+        for (int i = 0; i < sortKey.size(); i++) {
+            if (i > 0) {
+                buff.append(" OR ");
+            }
+            buff.append('(');
+            for (int j = 0; j < i; j++) {
+                String c = quote(sortKey.get(j));
+                if (key.get(j) == null) {
+                    buff.append(c).append(" IS NULL AND ");
+                } else {
+                    buff.append(c).append(" = ? AND ");
+                    params.add(key.get(j));
+                }
+            }
+            String c = quote(sortKey.get(i));
+            Object v = key.get(i);
+            if (v == null) {
+                buff.append(descending ? "1 = 0" : c + " IS NOT NULL");
+            } else if (descending) {
+                buff.append('(').append(c).append(op).append(" OR ").append(c).append(" IS NULL)");
+                params.add(v);
+            } else {
+                buff.append(c).append(op);
+                params.add(v);
+            }
+            buff.append(')');
+        }
+        buff.append(')');
+    }
+
+    private ArrayList<Object> readKey(ResultSet rs, ArrayList<String> sortKey) throws SQLException {
+        ArrayList<Object> key = new ArrayList<>(sortKey.size());
+        for (String c : sortKey) {
+            // the values are sent to the client and back, as text
+            key.add(ROWID.equals(c) ? rs.getString(ROWID) : rs.getString(c));
+        }
+        return key;
+    }
+
+    /**
+     * Get the estimated number of rows of the table from the statistics of the
+     * database, without counting the rows.
+     *
+     * @return the estimate, or -1 if not known
+     */
+    private long getRowCountEstimate(Connection conn) {
+        try (PreparedStatement prep = conn.prepareStatement("SELECT ROW_COUNT_ESTIMATE FROM "
+                + "INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?")) {
+            prep.setString(1, schema);
+            prep.setString(2, tableName);
+            try (ResultSet rs = prep.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1;
+            }
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.h2.message.DbException;
+import org.h2.security.SHA256;
+import org.h2.util.SortedProperties;
+import org.h2.util.StringUtils;
+import org.h2.util.Utils;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * The translations, read and parsed once per language. The sessions share the
+ * text map of their language, which must not be changed. The json of
+ * read_translations is also kept, with an ETag, so that a browser that has the
+ * translation already gets a 304 response.
+ */
+public class TranslationBundles {
+
+    public static final TranslationBundles instance = new TranslationBundles();
+
+    private static final String DEFAULT_LANGUAGE = "en";
+
+    /**
+     * The directory of the texts that H2 does not have.
+     */
+    private static final String OWN_TEXT = "/org/lealone/opscenter/service/res/";
+
+    private final ConcurrentHashMap<String, Bundle> bundles = new ConcurrentHashMap<>();
+
+    private TranslationBundles() {
+    }
+
+    /**
+     * Get the translation of a language.
+     *
+     * @param language the language, such as zh_CN, or null for the default
+     * @return the translation
+     */
+    Bundle get(String language) {
+        Locale locale = language == null ? null : ServiceConfig.instance.getLocale(language);
+        String key = locale == null ? DEFAULT_LANGUAGE : locale.toString();
+        return bundles.computeIfAbsent(key, Bundle::new);
+    }
+
+    /**
+     * Get the ETag of the translation of a language.
+     *
+     * @param language the language
+     * @return the ETag, quoted
+     */
+    public String getETag(String language) {
+        return get(language).etag;
+    }
+
+    /**
+     * The parsed translation of a language.
+     */
+    static class Bundle {
+
+        /**
+         * The texts by key, read-only.
+         */
+        final Map<String, Object> text;
+
+        /**
+         * The result of read_translations.
+         */
+        final String json;
+
+        final String etag;
+
+        Bundle(String language) {
+            HashMap<String, Object> map = new HashMap<>();
+            String file = "_text_" + StringUtils.toLowerEnglish(language) + ".prop";
+            try {
+                read(map, ServiceConfig.instance.getFile(file));
+                // the texts of the OpsCenter tools, English if not translated
+                read(map, Utils.getResource(OWN_TEXT + "_text_" + DEFAULT_LANGUAGE + ".prop"));
+                read(map, Utils.getResource(OWN_TEXT + file));
+            } catch (IOException e) {
+                DbException.traceThrowable(e);
+            }
+            text = Collections.unmodifiableMap(map);
+            HashMap<String, Object> withLanguage = new HashMap<>(map);
+            withLanguage.put("language", language);
+            JsonObject j = new JsonObject();
+            j.put("text", new JsonObject(withLanguage));
+            json = j.encode();
+            byte[] hash = SHA256.getHash(json.getBytes(StandardCharsets.UTF_8), false);
+            etag = '"' + language + '-' + StringUtils.convertBytesToHex(hash).substring(0, 16) + '"';
+        }
+
+        private static void read(HashMap<String, Object> map, byte[] trans) {
+            if (trans == null) {
+                return;
+            }
+            Properties p = SortedProperties.fromLines(new String(trans, StandardCharsets.UTF_8));
+            for (Map.Entry<Object, Object> e : p.entrySet()) {
+                String value = (String) e.getValue();
+                // remove starting # (if not translated yet)
+                map.put(e.getKey().toString(), value.startsWith("#") ? value.substring(1) : value);
+            }
+        }
+    }
+}
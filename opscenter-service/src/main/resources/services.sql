@@ -36,7 +36,14 @@ drop service if exists query_service;
 -- 创建服务: query_service
 create service if not exists query_service (
   query(jsessionid varchar, sql varchar) varchar,
-  edit_result(jsessionid varchar, row int, op int, value varchar) varchar
+  open_result(jsessionid varchar, sql varchar, page_size int) varchar,
+  fetch_result(jsessionid varchar, result_id int) varchar,
+  close_result(jsessionid varchar, result_id int) varchar,
+  submit_query(jsessionid varchar, sql varchar) varchar,
+  query_status(jsessionid varchar, query_id int) varchar,
+  cancel_query(jsessionid varchar, query_id int) varchar,
+  edit_result(jsessionid varchar, row int, op int, value varchar) varchar,
+  edit_rows(jsessionid varchar, changes varchar) varchar
 )
 implement by 'org.lealone.opscenter.service.QueryService'
 ;
@@ -44,7 +51,8 @@ implement by 'org.lealone.opscenter.service.QueryService'
 drop service if exists database_service;
 
 create service if not exists database_service (
-  read_all_database_objects(jsessionid varchar) varchar
+  read_all_database_objects(jsessionid varchar) varchar,
+  browse_table(jsessionid varchar, table_name varchar, order_by varchar, descending varchar, filters varchar, after varchar, page_size int) varchar
 )
 implement by 'org.lealone.opscenter.service.DatabaseService'
 ;
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import io.vertx.core.json.JsonObject;
+
+public class AsyncQueryTest extends ServiceTestBase {
+
+    private static AsyncQuery query;
+
+    public static void main(String[] args) throws Exception {
+        new AsyncQueryTest().runTest();
+    }
+
+    // 在脚本的第一条语句中取消，这样不依赖执行的速度
+    public static int cancelScript() {
+        query.cancel();
+        return 1;
+    }
+
+    @Override
+    protected void test() throws SQLException {
+        testCancelScript();
+        testUnknownSession();
+    }
+
+    private static void testCancelScript() throws SQLException {
+        ServiceSession session = new ServiceSession(ServiceConfig.instance);
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:")) {
+            try (Statement stat = conn.createStatement()) {
+                stat.execute("CREATE TABLE TEST(ID INT)");
+                stat.execute("CREATE ALIAS CANCEL_SCRIPT FOR '" + AsyncQueryTest.class.getName()
+                        + ".cancelScript'");
+            }
+            session.setConnection(conn);
+            query = session.addAsyncQuery(
+                    "CALL CANCEL_SCRIPT(); INSERT INTO TEST VALUES(1); INSERT INTO TEST VALUES(2)");
+            // 在当前线程中执行，不用线程池
+            query.run();
+            assertEquals(AsyncQuery.CANCELED, query.getStatus().getString("state"));
+            String result = query.getStatus().getString("result");
+            assertTrue(result.contains("${text.result.notRun}"), result);
+            assertTrue(result.contains("INSERT INTO TEST VALUES(1);") && result.contains("INSERT INTO TEST VALUES(2);"),
+                    result);
+            try (Statement stat = conn.createStatement();
+                    ResultSet rs = stat.executeQuery("SELECT COUNT(*) FROM TEST")) {
+                rs.next();
+                assertEquals(0, rs.getInt(1));
+            }
+        }
+    }
+
+    // 会话已经过期时返回状态，而不是抛出NullPointerException
+    private static void testUnknownSession() {
+        QueryService service = new QueryService();
+        assertEquals("rejected", new JsonObject(service.submitQuery("unknown", "SELECT 1")).getString("state"));
+        assertEquals("unknown", new JsonObject(service.queryStatus("unknown", 1)).getString("state"));
+        assertEquals("unknown", new JsonObject(service.cancelQuery("unknown", 1)).getString("state"));
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class CsvImportTest extends ServiceTestBase {
+
+    public static void main(String[] args) throws Exception {
+        new CsvImportTest().runTest();
+    }
+
+    @Override
+    protected void test() {
+        check("1,abc,2.5", ',', "1", "abc", "2.5");
+        // 引号中的分隔符和两个引号
+        check("1,\"a,b\",\"say \"\"hi\"\"\"", ',', "1", "a,b", "say \"hi\"");
+        // 空的字段是NULL，空的引号是空字符串
+        check("1,,\"\",", ',', "1", null, "", null);
+        check("", ',', (String) null);
+        // 去掉Windows换行的\r，引号中的\r保留
+        check("a;b\r", ';', "a", "b");
+        check("a;\"b\r\"", ';', "a", "b\r");
+        // 其他分隔符，逗号是普通字符
+        check("x,y\tz", '\t', "x,y", "z");
+        // 引号后面到分隔符之前的字符被忽略
+        check("\"a\"b,c", ',', "a", "c");
+    }
+
+    private static void check(String record, char separator, String... expected) {
+        List<String> fields = CsvImport.parseRecord(record, separator);
+        assertTrue(Arrays.asList(expected).equals(fields),
+                "record: " + record + " expected: " + Arrays.asList(expected) + " actual: " + fields);
+    }
+}
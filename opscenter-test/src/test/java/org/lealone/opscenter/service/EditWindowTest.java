@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+public class EditWindowTest extends ServiceTestBase {
+
+    private static final List<String> ROWS = Arrays.asList("row1", "row2", "row3", "row4", "row5");
+
+    public static void main(String[] args) throws Exception {
+        // 每页2行，必须在加载EditWindow类之前设置
+        System.setProperty("lealone.opscenter.editPageSize", "2");
+        new EditWindowTest().runTest();
+    }
+
+    @Override
+    protected void test() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:")) {
+            try (Statement stat = conn.createStatement()) {
+                // 两列的主键，插入的顺序和主键的顺序不同
+                stat.execute("CREATE TABLE TEST(A INT, B VARCHAR, V VARCHAR, PRIMARY KEY(A, B))");
+                stat.execute("INSERT INTO TEST VALUES(2, 'a', 'row3'), (1, 'b', 'row1'), (2, 'b', 'row4'), "
+                        + "(1, 'c', 'row2'), (3, 'a', 'row5')");
+                stat.execute("CREATE TABLE NOKEY(X INT)");
+            }
+            testPages(conn);
+            testNotEditable(conn);
+        }
+    }
+
+    private static void testPages(Connection conn) throws SQLException {
+        EditWindow w = EditWindow.open(conn, "SELECT * FROM TEST");
+        check(w.readPage(conn, EditWindow.FIRST, null), "(1 - 2 ", "row1", "row2");
+        check(w.readPage(conn, EditWindow.NEXT, null), "(3 - 4 ", "row3", "row4");
+        check(w.readPage(conn, EditWindow.NEXT, null), "(5 - 5 ", "row5");
+        // 最后一页之后是空页，然后还能从最后一页往前翻
+        check(w.readPage(conn, EditWindow.NEXT, null), "(${text.result.noRows}");
+        check(w.readPage(conn, EditWindow.PREVIOUS, null), "(3 - 4 ", "row3", "row4");
+        check(w.readPage(conn, EditWindow.PREVIOUS, null), "(1 - 2 ", "row1", "row2");
+        check(w.readPage(conn, EditWindow.PREVIOUS, null), "(1 - 2 ", "row1", "row2");
+        check(w.readPage(conn, EditWindow.NEXT, null), "(3 - 4 ", "row3", "row4");
+    }
+
+    private static void testNotEditable(Connection conn) throws SQLException {
+        // 结果中没有主键列、连接、没有主键的表、不是查询
+        for (String sql : new String[] { "SELECT V FROM TEST", "SELECT * FROM TEST T1, TEST T2",
+                "SELECT * FROM NOKEY", "DELETE FROM TEST" }) {
+            assertTrue(EditWindow.open(conn, sql) == null, "editable: " + sql);
+        }
+    }
+
+    private static void check(String html, String range, String... rows) {
+        assertTrue(html.contains(range), "expected: " + range + " in: " + html);
+        List<String> expected = Arrays.asList(rows);
+        for (String row : ROWS) {
+            assertTrue(html.contains(row) == expected.contains(row), "expected: " + expected + " in: " + html);
+        }
+    }
+}
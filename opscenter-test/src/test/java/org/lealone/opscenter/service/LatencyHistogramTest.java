@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.util.Random;
+
+public class LatencyHistogramTest extends ServiceTestBase {
+
+    public static void main(String[] args) throws Exception {
+        new LatencyHistogramTest().runTest();
+    }
+
+    @Override
+    protected void test() {
+        testEmpty();
+        testSmallValues();
+        testPercentiles();
+        testAdd();
+        testLargeValues();
+    }
+
+    private static void testEmpty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMin());
+        assertEquals(0, h.getMean());
+        assertEquals(0, h.getPercentile(99));
+    }
+
+    // 小于32的值每个值一个桶，是精确的
+    private static void testSmallValues() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < 32; i++) {
+            h.record(i);
+        }
+        assertEquals(0, h.getPercentile(0));
+        assertEquals(15, h.getPercentile(50));
+        assertEquals(31, h.getPercentile(100));
+        // 负数按0记录
+        h.record(-5);
+        assertEquals(0, h.getMin());
+    }
+
+    private static void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100_000; i++) {
+            h.record(i * 1000L);
+        }
+        assertEquals(100_000, h.getCount());
+        assertEquals(1000, h.getMin());
+        assertEquals(100_000_000, h.getMax());
+        assertEquals(50_000_500, h.getMean());
+        assertNear(50_000_000, h.getPercentile(50));
+        assertNear(90_000_000, h.getPercentile(90));
+        assertNear(99_000_000, h.getPercentile(99));
+        assertNear(99_900_000, h.getPercentile(99.9));
+        assertEquals(100_000_000, h.getPercentile(100));
+    }
+
+    // 每个线程一个直方图，合并后和只用一个直方图的结果相同
+    private static void testAdd() {
+        Random random = new Random(1);
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 10_000; i++) {
+            long v = (long) (Math.exp(random.nextDouble() * 20));
+            all.record(v);
+            (i % 2 == 0 ? a : b).record(v);
+        }
+        a.add(b);
+        assertEquals(all.getCount(), a.getCount());
+        assertEquals(all.getMin(), a.getMin());
+        assertEquals(all.getMax(), a.getMax());
+        assertEquals(all.getMean(), a.getMean());
+        for (double p : new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+            assertEquals(all.getPercentile(p), a.getPercentile(p));
+        }
+    }
+
+    private static void testLargeValues() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, h.getPercentile(50));
+    }
+
+    // 误差最多约3%，而且不会小于真实值
+    private static void assertNear(long expected, long actual) {
+        if (actual < expected || actual > expected * 1.04) {
+            fail("expected: about " + expected + " actual: " + actual);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.lang.management.ManagementFactory;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+
+import org.h2.server.web.PageParser;
+import org.h2.tools.SimpleResultSet;
+import org.h2.util.StringUtils;
+import org.h2.value.DataType;
+
+// 比较旧的渲染方式(每个单元格同时生成html和json，escapeData调用两次)和只生成json的ResultRenderer
+public class ResultRendererBenchmark {
+
+    private static final int ROWS = 20_000;
+    private static final int COLUMNS = 30;
+    private static final int LOOP = 10;
+
+    public static void main(String[] args) throws Exception {
+        SimpleResultSet rs = createResultSet();
+        for (int i = 0; i < 3; i++) {
+            run("before", rs, true);
+            run("after ", rs, false);
+        }
+    }
+
+    private static SimpleResultSet createResultSet() {
+        SimpleResultSet rs = new SimpleResultSet();
+        rs.setAutoClose(false);
+        for (int i = 0; i < COLUMNS; i++) {
+            rs.addColumn("C" + i, i % 3 == 0 ? Types.INTEGER : Types.VARCHAR, 0, 0);
+        }
+        for (int r = 0; r < ROWS; r++) {
+            Object[] row = new Object[COLUMNS];
+            for (int i = 0; i < COLUMNS; i++) {
+                row[i] = i % 3 == 0 ? (Object) (r * i) : "value <" + r + "> & " + i;
+            }
+            rs.addRow(row);
+        }
+        return rs;
+    }
+
+    private static void run(String name, SimpleResultSet rs, boolean legacy) throws SQLException {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long bytes = bean.getThreadAllocatedBytes(threadId);
+        long time = System.nanoTime();
+        for (int i = 0; i < LOOP; i++) {
+            rs.beforeFirst();
+            if (legacy) {
+                renderLegacy(rs);
+            } else {
+                render(rs);
+            }
+        }
+        time = (System.nanoTime() - time) / 1_000_000 / LOOP;
+        bytes = (bean.getThreadAllocatedBytes(threadId) - bytes) / LOOP;
+        System.out.println(name + ": " + time + " ms, " + (bytes / 1024 / 1024) + " MB allocated, " + ROWS
+                + " rows * " + COLUMNS + " columns");
+    }
+
+    private static void render(ResultSet rs) throws SQLException {
+        ResultRenderer renderer = new JsonGridRenderer();
+        renderer.start(rs.getMetaData());
+        int rows = 0;
+        while (rs.next()) {
+            renderer.writeRow(rs, ++rows);
+        }
+        renderer.finish();
+    }
+
+    // 以下代码来自重构前的QueryService.getResultSet
+    private static void renderLegacy(ResultSet rs) throws SQLException {
+        StringBuilder buff = new StringBuilder();
+        ArrayList<String> columnNames = new ArrayList<>();
+        ArrayList<ArrayList<String>> rowList = new ArrayList<>();
+        ResultSetMetaData meta = rs.getMetaData();
+        int columns = meta.getColumnCount();
+        buff.append("<table class=\"resultSet\" cellspacing=\"0\" cellpadding=\"0\">");
+        buff.append("<tr>");
+        for (int i = 0; i < columns; i++) {
+            columnNames.add(meta.getColumnLabel(i + 1));
+            buff.append("<th>").append(PageParser.escapeHtml(meta.getColumnLabel(i + 1))).append("</th>");
+        }
+        buff.append("</tr>");
+        while (rs.next()) {
+            buff.append("<tr>");
+            ArrayList<String> row = new ArrayList<String>();
+            for (int i = 0; i < columns; i++) {
+                row.add(escapeData(rs, i + 1));
+                buff.append("<td>").append(escapeData(rs, i + 1)).append("</td>");
+            }
+            rowList.add(row);
+            buff.append("</tr>");
+        }
+        buff.append("</table>");
+    }
+
+    private static String escapeData(ResultSet rs, int columnIndex) throws SQLException {
+        if (DataType.isBinaryColumn(rs.getMetaData(), columnIndex)) {
+            byte[] d = rs.getBytes(columnIndex);
+            if (d == null) {
+                return "<i>null</i>";
+            }
+            return StringUtils.convertBytesToHex(d);
+        }
+        String d = rs.getString(columnIndex);
+        if (d == null) {
+            return "<i>null</i>";
+        } else if (d.equals("")) {
+            return "";
+        }
+        return PageParser.escapeHtml(d);
+    }
+}
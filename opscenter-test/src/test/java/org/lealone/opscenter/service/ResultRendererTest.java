@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.h2.tools.SimpleResultSet;
+
+public class ResultRendererTest extends ServiceTestBase {
+
+    public static void main(String[] args) throws Exception {
+        new ResultRendererTest().runTest();
+    }
+
+    @Override
+    protected void test() throws SQLException {
+        SimpleResultSet rs = new SimpleResultSet();
+        rs.addColumn("ID", Types.INTEGER, 10, 0);
+        rs.addColumn("NAME", Types.VARCHAR, 255, 0);
+        rs.addColumn("DATA", Types.VARBINARY, 255, 0);
+        rs.addRow(1, "<a>&b", new byte[] { 1, (byte) 0xab });
+        rs.addRow(2, null, null);
+        // 和编辑时输入的null、"= "前缀区分开
+        rs.addRow(3, "null", new byte[0]);
+        rs.addRow(4, "", new byte[0]);
+
+        JsonGridRenderer renderer = new JsonGridRenderer();
+        renderer.start(rs.getMetaData());
+        int rows = 0;
+        while (rs.next()) {
+            renderer.writeRow(rs, ++rows);
+        }
+        renderer.finish();
+        assertEquals(Arrays.asList("ID", "NAME", "DATA"), renderer.getColumnNames());
+        ArrayList<ArrayList<String>> result = renderer.takeRows();
+        assertEquals(Arrays.asList("1", "&lt;a&gt;&amp;b", "01ab"), result.get(0));
+        assertEquals(Arrays.asList("2", "<i>null</i>", "<i>null</i>"), result.get(1));
+        assertEquals(Arrays.asList("3", "<div style='display: none'>= </div>null", ""), result.get(2));
+        assertEquals(Arrays.asList("4", "", ""), result.get(3));
+        // 取走之后重新开始
+        assertEquals(0, renderer.takeRows().size());
+    }
+}
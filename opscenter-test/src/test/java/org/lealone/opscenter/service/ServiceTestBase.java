@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+// service包中的类大多是包级私有的，所以它们的测试也放在这个包中，
+// 每个测试类都有main方法，可以单独运行
+public abstract class ServiceTestBase {
+
+    protected abstract void test() throws Exception;
+
+    protected void runTest() throws Exception {
+        test();
+        System.out.println(getClass().getSimpleName() + " ok");
+    }
+
+    protected static void assertEquals(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            fail("expected: " + expected + " actual: " + actual);
+        }
+    }
+
+    protected static void assertEquals(long expected, long actual) {
+        if (expected != actual) {
+            fail("expected: " + expected + " actual: " + actual);
+        }
+    }
+
+    protected static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            fail(message);
+        }
+    }
+
+    protected static void fail(String message) {
+        throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SqlLiteralsTest extends ServiceTestBase {
+
+    public static void main(String[] args) throws Exception {
+        new SqlLiteralsTest().runTest();
+    }
+
+    @Override
+    protected void test() {
+        testParameterize();
+        testNotParameterizable();
+        testNormalize();
+    }
+
+    private static void testParameterize() {
+        ArrayList<Object> values = new ArrayList<>();
+        assertEquals("INSERT INTO TEST VALUES(?, ?, ?, ?)",
+                SqlLiterals.parameterize("INSERT INTO TEST VALUES(1, 'a''b', .5, -2.5e-3)", values));
+        assertEquals(Arrays.asList(1L, "a'b", new BigDecimal(".5"), new BigDecimal("-2.5e-3")), values);
+
+        values.clear();
+        assertEquals("UPDATE TEST SET NAME = ? WHERE ID = ? AND X LIKE ?",
+                SqlLiterals.parameterize("UPDATE TEST SET NAME = 'x' WHERE ID = 10 AND X LIKE 'a%'", values));
+        assertEquals(Arrays.asList("x", 10L, "a%"), values);
+
+        // 减号是运算符而不是负数
+        values.clear();
+        assertEquals("SELECT A-? FROM T", SqlLiterals.parameterize("SELECT A-1 FROM T", values));
+        assertEquals(Arrays.asList(1L), values);
+
+        // 标识符中的数字和不是值的位置上的数字保持不变
+        values.clear();
+        assertEquals("SELECT C1, \"x'1\" FROM T2 ORDER BY 1",
+                SqlLiterals.parameterize("SELECT C1, \"x'1\" FROM T2 ORDER BY 1", values));
+        assertEquals(0, values.size());
+
+        // 超出long范围的整数
+        values.clear();
+        SqlLiterals.parameterize("SELECT * FROM T WHERE ID = 12345678901234567890", values);
+        assertEquals(Arrays.asList(new BigDecimal("12345678901234567890")), values);
+
+        // 不需要值的时候values可以是null
+        assertEquals("SELECT * FROM T WHERE ID = ?", SqlLiterals.parameterize("SELECT * FROM T WHERE ID = 5", null));
+    }
+
+    private static void testNotParameterizable() {
+        assertEquals(null, SqlLiterals.parameterize("SELECT * FROM TEST WHERE ID = ?", null));
+        assertEquals(null, SqlLiterals.parameterize("SELECT 1 -- comment", null));
+        assertEquals(null, SqlLiterals.parameterize("SELECT 1 /* comment */", null));
+        assertEquals(null, SqlLiterals.parameterize("SELECT $$text$$", null));
+        assertEquals(null, SqlLiterals.parameterize("SELECT 'not closed", null));
+        assertEquals(null, SqlLiterals.parameterize("SELECT \"not closed", null));
+    }
+
+    private static void testNormalize() {
+        assertEquals("SELECT * FROM TEST WHERE ID = ? AND NAME = ?  ",
+                SqlLiterals.normalize("SELECT * FROM TEST WHERE ID = ? AND NAME = 'it''s' -- comment"));
+        assertEquals("SELECT \"A1\" FROM T   WHERE X IN (?, ?, ?) LIMIT ?",
+                SqlLiterals.normalize("SELECT \"A1\" FROM T /* x */ WHERE X IN (1, 2.5e-3, $$a$$) LIMIT 10"));
+        // 只是字面量不同的语句得到同一个指纹
+        assertEquals(SqlLiterals.normalize("SELECT * FROM T WHERE A = ? AND B = 'x'"),
+                SqlLiterals.normalize("SELECT * FROM T WHERE A = ? AND B = 'yz'"));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+public class TableBrowserTest extends ServiceTestBase {
+
+    public static void main(String[] args) throws Exception {
+        new TableBrowserTest().runTest();
+    }
+
+    @Override
+    protected void test() throws SQLException {
+        ServiceSession session = new ServiceSession(ServiceConfig.instance);
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:")) {
+            try (Statement stat = conn.createStatement()) {
+                // 排序列有重复值和NULL，所以键集条件要用到主键和IS NULL
+                stat.execute("CREATE TABLE TEST(ID INT PRIMARY KEY, S VARCHAR, N INT)");
+                stat.execute("CREATE INDEX IDX_S ON TEST(S)");
+                stat.execute("INSERT INTO TEST(ID, S) VALUES(1, 'b'), (2, NULL), (3, 'a'), (4, NULL), (5, 'b'), "
+                        + "(6, 'c'), (7, 'a')");
+                stat.execute("CREATE TABLE NOKEY(X INT)");
+                stat.execute("INSERT INTO NOKEY VALUES(3), (1), (2)");
+            }
+            TableBrowser b = TableBrowser.open(conn, "test");
+            for (int pageSize = 1; pageSize <= 8; pageSize++) {
+                check(conn, session, b, null, false, pageSize, "SELECT ID FROM TEST ORDER BY ID");
+                check(conn, session, b, null, true, pageSize, "SELECT ID FROM TEST ORDER BY ID DESC");
+                check(conn, session, b, "S", false, pageSize,
+                        "SELECT ID FROM TEST ORDER BY S NULLS FIRST, ID");
+                check(conn, session, b, "S", true, pageSize,
+                        "SELECT ID FROM TEST ORDER BY S DESC NULLS LAST, ID DESC");
+            }
+            // 没有主键的表按_ROWID_分页
+            check(conn, session, TableBrowser.open(conn, "NOKEY"), null, false, 2,
+                    "SELECT X FROM NOKEY ORDER BY _ROWID_");
+            try {
+                b.readPage(conn, session, "N", false, null, null, 2);
+                fail("sorted by a column that is not indexed");
+            } catch (SQLException e) {
+                // expected
+            }
+        }
+    }
+
+    // 一页一页地读取，直到没有下一页，结果和不分页的查询相同
+    private static void check(Connection conn, ServiceSession session, TableBrowser b, String orderBy,
+            boolean descending, int pageSize, String sql) throws SQLException {
+        ArrayList<String> expected = new ArrayList<>();
+        try (Statement stat = conn.createStatement(); ResultSet rs = stat.executeQuery(sql)) {
+            while (rs.next()) {
+                expected.add(rs.getString(1));
+            }
+        }
+        ArrayList<String> actual = new ArrayList<>();
+        String after = null;
+        do {
+            JsonObject page = b.readPage(conn, session, orderBy, descending, null, after, pageSize);
+            JsonArray rows = page.getJsonArray("rows");
+            for (int i = 0; i < rows.size(); i++) {
+                actual.add(rows.getJsonArray(i).getString(0));
+            }
+            after = page.getJsonObject("browse").getString("after");
+        } while (after != null && actual.size() <= expected.size());
+        assertTrue(expected.equals(actual),
+                sql + " page size " + pageSize + " expected: " + expected + " actual: " + actual);
+    }
+}
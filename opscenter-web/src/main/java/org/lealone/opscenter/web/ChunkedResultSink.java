@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.opscenter.web;
+
+import java.util.concurrent.Semaphore;
+
+import org.lealone.opscenter.service.ResultSink;
+
+import io.vertx.core.Context;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * Writes a streamed result to a chunked http response. The writes happen on
+ * the event loop of the response, the worker thread that executes the
+ * statements waits while the write queue of the response is full.
+ */
+class ChunkedResultSink implements ResultSink {
+
+    private final Context context;
+    private final HttpServerResponse response;
+    private final Semaphore writable = new Semaphore(1);
+    private volatile boolean closed;
+
+    ChunkedResultSink(Context context, HttpServerResponse response, String contentType) {
+        this.context = context;
+        this.response = response;
+        response.setChunked(true);
+        response.putHeader("Content-Type", contentType);
+        response.closeHandler(v -> {
+            closed = true;
+            writable.release();
+        });
+    }
+
+    @Override
+    public boolean write(String chunk) {
+        return write(Buffer.buffer(chunk, "UTF-8"));
+    }
+
+    @Override
+    public boolean write(byte[] data, int offset, int length) {
+        return write(Buffer.buffer(length).appendBytes(data, offset, length));
+    }
+
+    private boolean write(Buffer chunk) {
+        try {
+            writable.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (closed) {
+            writable.release();
+            return false;
+        }
+        context.runOnContext(v -> {
+            if (closed) {
+                writable.release();
+                return;
+            }
+            response.write(chunk);
+            if (response.writeQueueFull()) {
+                response.drainHandler(d -> {
+                    response.drainHandler(null);
+                    writable.release();
+                });
+            } else {
+                writable.release();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * End the response after the pending chunks are written.
+     */
+    void end() {
+        end(null);
+    }
+
+    /**
+     * End the response after the pending chunks are written. If nothing was
+     * written yet, the error is sent instead of the result.
+     *
+     * @param error the error, or null
+     */
+    void end(Throwable error) {
+        context.runOnContext(v -> {
+            if (closed) {
+                return;
+            }
+            if (error != null && !response.headWritten()) {
+                response.setChunked(false);
+                response.setStatusCode(500);
+                response.headers().remove("Content-Disposition");
+                response.putHeader("Content-Type", "text/plain; charset=utf-8");
+                response.end(String.valueOf(error.getMessage()));
+            } else {
+                response.end();
+            }
+        });
+    }
+}
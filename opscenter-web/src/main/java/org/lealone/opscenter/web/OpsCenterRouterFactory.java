@@ -21,12 +21,17 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import org.lealone.opscenter.service.QueryService;
 import org.lealone.opscenter.service.ServiceConfig;
+import org.lealone.opscenter.service.ServiceExecutor;
+import org.lealone.opscenter.service.TranslationBundles;
 import org.lealone.server.http.HttpRouterFactory;
 
+import io.vertx.core.Context;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
@@ -35,6 +40,8 @@ import io.vertx.ext.web.sstore.SessionStore;
 
 public class OpsCenterRouterFactory extends HttpRouterFactory {
 
+    private static final String CONTEXT_KEY = "opscenter.context";
+
     @Override
     protected void initRouter(Map<String, String> config, Vertx vertx, Router router) {
         int size = config.size() * 2 + 3;
@@ -83,6 +90,11 @@ public class OpsCenterRouterFactory extends HttpRouterFactory {
         // if ("ops_service".equalsIgnoreCase(serviceName) && "login".equalsIgnoreCase(methodName)) {
         // routingContext.session().put("jsessionid", result.toString());
         // }
+        Context context = routingContext.get(CONTEXT_KEY);
+        if (context != null && !Context.isOnEventLoopThread()) {
+            context.runOnContext(v -> super.sendHttpServiceResponse(routingContext, serviceName, methodName, result));
+            return;
+        }
         super.sendHttpServiceResponse(routingContext, serviceName, methodName, result);
     }
 
@@ -97,9 +109,82 @@ public class OpsCenterRouterFactory extends HttpRouterFactory {
                     request.params().set("language", language);
                 }
             }
+            // 翻译文本只在语言文件变化时才变，浏览器缓存过的就不用再传一次
+            String etag = TranslationBundles.instance.getETag(language == null ? "zh_CN" : language);
+            HttpServerResponse response = routingContext.response();
+            response.putHeader("ETag", etag);
+            response.putHeader("Cache-Control", "no-cache");
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                response.setStatusCode(304).end();
+                return;
+            }
             routingContext.next();
         });
 
+        // 多条语句的执行结果一条一条地写回浏览器，不在服务端缓存
+        router.post("/service/query_service/stream_query").handler(routingContext -> {
+            HttpServerRequest request = routingContext.request();
+            String jsessionid = request.getParam("jsessionid");
+            String sql = request.getParam("sql");
+            ChunkedResultSink sink = new ChunkedResultSink(vertx.getOrCreateContext(), routingContext.response(),
+                    "text/html; charset=utf-8");
+            execute(routingContext, "query_service", () -> {
+                try {
+                    new QueryService().streamQuery(jsessionid, sql, sink);
+                } finally {
+                    sink.end();
+                }
+            });
+        });
+
+        // 结果里只显示了LOB的开头部分，完整的LOB通过这个路由按需读取
+        router.get("/service/query_service/stream_lob").handler(routingContext -> {
+            HttpServerRequest request = routingContext.request();
+            String jsessionid = request.getParam("jsessionid");
+            int lobId = Integer.parseInt(request.getParam("lobId"));
+            QueryService service = new QueryService();
+            String contentType = service.getLobContentType(jsessionid, lobId);
+            if (contentType == null) {
+                routingContext.response().setStatusCode(404).end();
+                return;
+            }
+            ChunkedResultSink sink = new ChunkedResultSink(vertx.getOrCreateContext(), routingContext.response(),
+                    contentType);
+            execute(routingContext, "query_service", () -> {
+                try {
+                    service.streamLob(jsessionid, lobId, sink);
+                } catch (Exception e) {
+                    // the response is already started, the client sees a truncated value
+                } finally {
+                    sink.end();
+                }
+            });
+        });
+
+        // 把查询结果以CSV或JSON Lines格式边读边写到响应中，不在内存中保留所有记录
+        router.route("/service/query_service/export_query").handler(routingContext -> {
+            HttpServerRequest request = routingContext.request();
+            String jsessionid = request.getParam("jsessionid");
+            String sql = request.getParam("sql");
+            String format = "jsonl".equals(request.getParam("format")) ? "jsonl" : "csv";
+            boolean gzip = Boolean.parseBoolean(request.getParam("gzip"));
+            HttpServerResponse response = routingContext.response();
+            response.putHeader("Content-Disposition",
+                    "attachment; filename=\"export." + format + (gzip ? ".gz" : "") + "\"");
+            ChunkedResultSink sink = new ChunkedResultSink(vertx.getOrCreateContext(), response,
+                    QueryService.getExportContentType(format, gzip));
+            execute(routingContext, "query_service", () -> {
+                Throwable error = null;
+                try {
+                    new QueryService().exportQuery(jsessionid, sql, format, gzip, sink);
+                } catch (Throwable e) {
+                    error = e;
+                } finally {
+                    sink.end(error);
+                }
+            });
+        });
+
         // router.route("/service/*").handler(routingContext -> {
         // String jsessionid = routingContext.session().get("jsessionid");
         // if (jsessionid != null) {
@@ -108,9 +193,56 @@ public class OpsCenterRouterFactory extends HttpRouterFactory {
         // routingContext.next();
         // });
 
+        // 其他服务方法会执行阻塞的JDBC和文件操作，所以在ServiceExecutor的线程中继续路由，
+        // 不占用event loop，响应再回到event loop中发送
+        router.route("/service/*").handler(routingContext -> {
+            routingContext.put(CONTEXT_KEY, vertx.getOrCreateContext());
+            execute(routingContext, getServiceName(routingContext.request().path()), routingContext::next);
+        });
+
         super.setHttpServiceHandler(config, vertx, router);
     }
 
+    private static void execute(RoutingContext routingContext, String serviceName, Runnable task) {
+        // 在event loop中调用，出错时回到这个context中结束响应，否则请求一直挂着
+        Context context = routingContext.vertx().getOrCreateContext();
+        Runnable call = () -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                context.runOnContext(v -> fail(routingContext, t));
+                // 再抛出，ServiceExecutor记录失败的调用
+                throw t;
+            }
+        };
+        if (!ServiceExecutor.instance.execute(serviceName, call)) {
+            HttpServerResponse response = routingContext.response();
+            if (!response.headWritten()) {
+                response.setStatusCode(503).end("Too many requests for " + serviceName + ", please try again later");
+            }
+        }
+    }
+
+    private static void fail(RoutingContext routingContext, Throwable t) {
+        HttpServerResponse response = routingContext.response();
+        if (response.ended()) {
+            return;
+        }
+        if (response.headWritten()) {
+            // 已经发送了部分结果，关闭连接让客户端知道结果不完整
+            response.close();
+        } else {
+            routingContext.fail(500, t);
+        }
+    }
+
+    private static String getServiceName(String path) {
+        // /service/service_name/method_name
+        int start = "/service/".length();
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.substring(start) : path.substring(start, end);
+    }
+
     private static String parseAcceptLanguageHeader(HttpServerRequest request) {
         String header = request.getHeader("accept-language");
         if (header == null)
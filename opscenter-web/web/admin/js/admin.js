@@ -5,6 +5,12 @@
         	ssl: 'false',
         	port: "",
         	sessions: [],
+        	sessionRegistry: {},
+        	resultCache: {},
+        	profiler: "",
+        	slowQueryLog: "",
+        	serviceThreads: "",
+        	services: [],
         }
     },
     mounted() {
@@ -5,17 +5,76 @@
             rowcount: 1000,
             autoComplete: 0,
             autoSelect: 1,
+            queryId: 0,
+            streamController: null,
         }
     },
     methods: {
         _query(sql) {
-            QueryService.query(lealone.currentUser, sql, data=> {
-                if(data.type == "result-table")
-                    lealone.route('ops', 'result-table', {result: data});
-                else
-                    lealone.route('ops', 'result', {result: data});
+            // 查询在服务端的工作线程池中执行，这里只轮询状态
+            QueryService.submitQuery(lealone.currentUser, sql, data=> {
+                if(data.state == "rejected") {
+                    lealone.route('ops', 'result', {result: data.result});
+                    return;
+                }
+                this.queryId = data.queryId;
+                this._poll(data.queryId, 50);
             })
         },
+        _stream(sql) {
+            // 多条语句时每条语句的结果一执行完就返回，边读边显示
+            var controller = new AbortController();
+            this.streamController = controller;
+            var html = "";
+            var decoder = new TextDecoder();
+            var body = new URLSearchParams();
+            body.append("jsessionid", lealone.currentUser);
+            body.append("sql", sql);
+            fetch("/service/query_service/stream_query", {method: "POST", body: body, signal: controller.signal})
+            .then(response => {
+                var reader = response.body.getReader();
+                var read = () => reader.read().then(r => {
+                    if(r.done) {
+                        html += decoder.decode();
+                        lealone.route('ops', 'result', {result: html});
+                        return;
+                    }
+                    html += decoder.decode(r.value, {stream: true});
+                    lealone.route('ops', 'result', {result: html});
+                    return read();
+                });
+                return read();
+            })
+            .catch(e => {
+                if(e.name != "AbortError")
+                    lealone.route('ops', 'result', {result: html + e});
+            })
+            .finally(() => {
+                if(this.streamController == controller)
+                    this.streamController = null;
+            });
+        },
+        _poll(queryId, delay) {
+            setTimeout(() => {
+                QueryService.queryStatus(lealone.currentUser, queryId, data=> {
+                    if(data.state == "queued" || data.state == "running") {
+                        lealone.route('ops', 'result', {result: data.state + ": " + data.rowsFetched
+                                + " rows, " + data.elapsedTime + " ms"});
+                        this._poll(queryId, Math.min(delay * 2, 1000));
+                        return;
+                    }
+                    if(this.queryId == queryId)
+                        this.queryId = 0;
+                    var result = data.result;
+                    if(result == undefined)
+                        result = data.state;
+                    if(result.type == "result-table")
+                        lealone.route('ops', 'result-table', {result: result});
+                    else
+                        lealone.route('ops', 'result', {result: result});
+                })
+            }, delay);
+        },
         setAutoCommit() {
             this._query('@autocommit_' + this.autoCommit + '.');
         },
@@ -32,13 +91,23 @@
             this._query('ROLLBACK');
         },
         run() {
-            this._query(lealone.get("query").sql);
+            var sql = lealone.get("query").sql;
+            if(/;\s*\S/.test(sql))
+                this._stream(sql);
+            else
+                this._query(sql);
         },
         runSelected() {
             lealone.route('ops', 'result', {result: "runSelected sql=" + lealone.get("query").sql});
         },
         cancel() {
-            lealone.route('ops', 'result', {result: "sql=@cancel: TODO"});
+            if(this.streamController) {
+                this.streamController.abort();
+                this._query('@cancel.');
+            } else if(this.queryId > 0)
+                QueryService.cancelQuery(lealone.currentUser, this.queryId);
+            else
+                this._query('@cancel.');
         },
         history() {
             this._query('@history.'); 
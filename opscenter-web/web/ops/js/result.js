@@ -1,12 +1,109 @@
 ﻿const opsResult = { 
     data() {
         return {
-            result: ""
+            result: "",
+            sortColumn: -1,
+            sortAsc: true
+        }
+    },
+    methods: {
+        exportUrl(format) {
+            // 导出时服务端重新执行查询，结果直接写到响应中
+            return "/service/query_service/export_query?format=" + format
+                + "&jsessionid=" + encodeURIComponent(lealone.currentUser)
+                + "&sql=" + encodeURIComponent(this.result.sql);
+        },
+        edit() {
+            // 和旧的html结果一样，用@edit重新执行查询
+            lealone.get("ops-header")._query("@edit " + this.result.sql);
+        },
+        browse(orderBy, descending) {
+            // 重新读取第一页，排序和过滤条件在服务端转成SQL
+            var b = this.result.browse;
+            DatabaseService.browseTable(lealone.currentUser, b.table, orderBy, String(descending),
+                    JSON.stringify(b.filters), "", 0, data => {
+                if (data.error) {
+                    this.result.queryInfo = data.error;
+                    return;
+                }
+                this.result = data;
+                this.sortColumn = -1;
+            });
+        },
+        sort(c) {
+            var b = this.result.browse, name = this.result.columnNames[c];
+            if (b && b.sortable.indexOf(name) >= 0) {
+                this.browse(name, b.orderBy == name ? !b.descending : false);
+                return;
+            }
+            // 只对已经取回的行排序，数值列按数值比较
+            this.sortAsc = this.sortColumn == c ? !this.sortAsc : true;
+            this.sortColumn = c;
+            var result = this.result, asc = this.sortAsc ? 1 : -1;
+            var index = result.rows.map((row, r) => r);
+            var num = v => v !== "" && v != null && !isNaN(v) ? Number(v) : null;
+            index.sort((a, b) => {
+                var x = result.rows[a][c], y = result.rows[b][c];
+                var nx = num(x), ny = num(y);
+                if(nx != null && ny != null)
+                    return (nx - ny) * asc;
+                return String(x).localeCompare(String(y)) * asc;
+            });
+            if(result.lobs) {
+                // lobs 的 key 是 "行,列"，排序后要重新映射
+                var lobs = {};
+                index.forEach((old, r) => {
+                    for(var k = 0; k < result.columnNames.length; k++) {
+                        var id = result.lobs[old + ',' + k];
+                        if(id) lobs[r + ',' + k] = id;
+                    }
+                });
+                result.lobs = lobs;
+            }
+            result.rows = index.map(r => result.rows[r]);
+        },
+        fetchMore() {
+            var result = this.result, b = result.browse;
+            if (b) {
+                DatabaseService.browseTable(lealone.currentUser, b.table, b.orderBy, String(b.descending),
+                        JSON.stringify(b.filters), b.after, 0, data => {
+                    if (data.error) {
+                        result.hasMore = false;
+                        result.queryInfo = data.error;
+                        return;
+                    }
+                    result.rows = result.rows.concat(data.rows);
+                    this.sortColumn = -1;
+                    result.lobs = Object.assign({}, result.lobs, data.lobs);
+                    result.hasMore = data.hasMore;
+                    result.queryInfo = data.queryInfo;
+                    result.browse = data.browse;
+                });
+                return;
+            }
+            QueryService.fetchResult(lealone.currentUser, result.resultId, data => {
+                if(data.rows == undefined) {
+                    // 出错了，服务端已经关闭游标
+                    result.hasMore = false;
+                    return;
+                }
+                result.rows = result.rows.concat(data.rows);
+                this.sortColumn = -1;
+                if(data.lobs)
+                    result.lobs = Object.assign({}, result.lobs, data.lobs);
+                result.hasMore = data.hasMore;
+                result.queryInfo = data.queryInfo;
+            })
         }
     },
     mounted() {
         if(lealone.screen == "ops" && lealone.page == this.gid) {
+            var old = this.result;
+            if(old && old.hasMore && old.resultId != lealone.params.result.resultId) {
+                QueryService.closeResult(lealone.currentUser, old.resultId);
+            }
             this.result = lealone.params.result;
+            this.sortColumn = -1;
         }
     }
 }
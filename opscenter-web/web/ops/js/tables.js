@@ -110,12 +110,26 @@ function writeTree() {
         } else {
             var isTable = node.icon == "table" || node.icon == "view";
             tree.push("<a id='" + node.text + "' href='/' onclick=\"insertText('" + node.link + "', " + isTable +", event)\">" + node.text + "</a>");
+            if (isTable) {
+                tree.push(" <a href='/' title='browse' onclick=\"browseTable('" + node.link + "', event)\">&raquo;</a>");
+            }
         }
         tree.push("<br />");
     }
     writeDiv(0, 0, -last.type);
 }
 
+// 按主键分页浏览表中的数据，排序和过滤都在服务端执行
+function browseTable(s, event) {
+    event.preventDefault();
+    DatabaseService.browseTable(lealone.currentUser, decodeURIComponent(s), "", "false", "", "", 0, data => {
+        if (data.error)
+            lealone.route('ops', 'result', {result: data.error});
+        else
+            lealone.route('ops', 'result-table', {result: data});
+    });
+}
+
 function hit(i) {
     var theDiv = document.getElementById("div" + i);
     var theJoin = document.getElementById("join" + i);